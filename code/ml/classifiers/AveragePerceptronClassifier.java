@@ -1,16 +1,20 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
 
+import ml.data.CompactExample;
 import ml.data.DataSet;
 import ml.data.Example;
+import ml.data.FeatureIndexer;
+import ml.data.ShuffleBuffer;
 
 /**
  * Average perceptron classifier.  We'll utilize most of the code from the
- * PerceptronClassifier class and only need to rewrite the train method.
+ * PerceptronClassifier class and only need to rewrite the train methods.
  * 
  * @author dkauchak
  *
@@ -18,57 +22,149 @@ import ml.data.Example;
 public class AveragePerceptronClassifier extends PerceptronClassifier {
 	
 	public void train(DataSet data) {
-		initializeWeights(data.getAllFeatureIndices());
+		initializeWeights(data);
 		
-		ArrayList<Example> training = (ArrayList<Example>)data.getData().clone();
-
-		int total = 0;
-		int lastUpdate = 1;
+		CompactExample[] training = indexer.compact(data.getData()).toArray(new CompactExample[0]);
+		List<CompactExample> shuffled = Arrays.asList(training);
 		
-		// initialize the weights
-		HashMap<Integer, Double> sumWeights = getZeroWeights(weights.keySet());
-		double sumB = 0;
+		// Rather than adding the current weights into a running sum after every
+		// example (or every mistake), which touches every feature, we keep a second
+		// set of weights, u, where each update is scaled by the number of examples
+		// seen before it, c.  At the end w - u/c is the average of the weights after
+		// each example, so each update only touches the example's features.  c counts
+		// examples over all of the iterations, so it's a long.
+		double[] u = new double[weights.length];
+		double uB = 0;
+		long c = 0;
 		
-		for( int it = 0; it < iterations; it++ ){
-			Collections.shuffle(training);
+		for( iterationsRun = 0; iterationsRun < iterations; ){
+			Collections.shuffle(shuffled, rand);
+			int mistakes = 0;
 			
-			for( Example e: training ){
+			for( CompactExample e: training ){
 				if( getPrediction(e) != e.getLabel() ){
 					double label = e.getLabel();
-
-					// update the weights
-					for( Integer featureIndex: weights.keySet() ){
-						double featureValue = e.getFeature(featureIndex);
-						double oldSumWeight = sumWeights.get(featureIndex);
-						double oldWeight = weights.get(featureIndex);
-
-						// update the aggregate weights
-						sumWeights.put(featureIndex, oldSumWeight + lastUpdate*oldWeight);
-
-						
-						// update the basic weights
-						weights.put(featureIndex, oldWeight + featureValue*label);						
+					int[] indices = e.getIndices();
+					double[] values = e.getValues();
+					
+					for( int i = 0; i < indices.length; i++ ){
+						weights[indices[i]] += values[i]*label;
+						u[indices[i]] += c*values[i]*label;
 					}
-
-					// update sumB
-					sumB += lastUpdate*b;
 					
-					// update b
 					b += label;
-					
-					lastUpdate = 0;
+					uB += c*label;
+					mistakes++;
+				}
+				
+				c++;
+			}
+			
+			iterationsRun++;
+			takeAveragedSnapshot(u, uB, c);
+			
+			if( mistakes == 0 ){
+				// converged: the weights won't change again, so the remaining iterations would
+				// only add more copies of them to the average, i.e. only c would change
+				for( int it = iterationsRun; it < iterations; it++ ){
+					c += training.length;
+					takeAveragedSnapshot(u, uB, c);
 				}
 				
-				total++;
-				lastUpdate++;
+				break;
 			}
 		}
 		
-		// normalize the weights and save back into the weights vector
-		for( Integer featureIndex: sumWeights.keySet() ){
-			weights.put(featureIndex, sumWeights.get(featureIndex)/total);
+		average(u, uB, c);
+	}
+	
+	public void train(Iterable<Example> source){
+		indexer = new FeatureIndexer();
+		weights = new double[0];
+		b = 0;
+		snapshots = new ArrayList<double[]>();
+		
+		// see train(DataSet)
+		double[] u = new double[0];
+		double uB = 0;
+		long c = 0;
+		
+		for( iterationsRun = 0; iterationsRun < iterations; ){
+			Iterator<CompactExample> examples = new ShuffleBuffer<CompactExample>(indexer.addAndCompact(source.iterator()), shuffleBufferSize, rand);
+			int mistakes = 0;
+			long start = c;
+			
+			while( examples.hasNext() ){
+				CompactExample e = nextStreamed(examples);
+				
+				if( u.length < weights.length ){
+					u = Arrays.copyOf(u, weights.length);
+				}
+				
+				if( getPrediction(e) != e.getLabel() ){
+					double label = e.getLabel();
+					int[] indices = e.getIndices();
+					double[] values = e.getValues();
+					
+					for( int i = 0; i < indices.length; i++ ){
+						weights[indices[i]] += values[i]*label;
+						u[indices[i]] += c*values[i]*label;
+					}
+					
+					b += label;
+					uB += c*label;
+					mistakes++;
+				}
+				
+				c++;
+			}
+			
+			iterationsRun++;
+			
+			if( mistakes == 0 ){
+				// see train(DataSet)
+				c += (iterations - iterationsRun)*(c - start);
+				break;
+			}
 		}
 		
-		b = sumB/total;
+		weights = Arrays.copyOf(weights, indexer.size());
+		average(u, uB, c);
+	}
+	
+	/**
+	 * If snapshots are being kept, save the averaged weights so far
+	 * 
+	 * @param u the sum of the updates, each scaled by the number of examples seen before it
+	 * @param uB the same for the intersect
+	 * @param c the number of examples seen
+	 */
+	private void takeAveragedSnapshot(double[] u, double uB, long c){
+		if( keepSnapshots && c > 0 ){
+			double[] averaged = new double[weights.length];
+			
+			for( int i = 0; i < weights.length; i++ ){
+				averaged[i] = weights[i] - u[i]/c;
+			}
+			
+			takeSnapshot(averaged, b - uB/c);
+		}
+	}
+	
+	/**
+	 * Turn the weights into the averaged weights
+	 * 
+	 * @param u the sum of the updates, each scaled by the number of examples seen before it
+	 * @param uB the same for the intersect
+	 * @param c the number of examples seen
+	 */
+	private void average(double[] u, double uB, long c){
+		if( c > 0 ){
+			for( int i = 0; i < weights.length; i++ ){
+				weights[i] -= u[i]/c;
+			}
+			
+			b -= uB/c;
+		}
 	}
 }
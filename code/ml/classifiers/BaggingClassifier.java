@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.function.ToDoubleFunction;
 
 import ml.data.DataSet;
 import ml.data.Example;
@@ -158,9 +159,40 @@ public class BaggingClassifier implements Classifier {
 	 */
 	@Override
 	public double classify(Example example) {
+		return vote(c -> c.classify(example));
+	}
+
+	/**
+	 * classify returns the label with the max vote from the trained
+	 * classifiers, where each decision tree (compiled or not) votes as
+	 * if it had been trained with depthLimit as its depth limit
+	 * 
+	 * @param input Example
+	 * @param depthLimit
+	 * @return label
+	 */
+	public double classify(Example example, int depthLimit) {
+		return vote(c -> {
+			if (c instanceof BinaryDecisionTreeClassifier) {
+				return ((BinaryDecisionTreeClassifier) c).classify(example, depthLimit);
+			} else if (c instanceof CompiledTreeClassifier) {
+				return ((CompiledTreeClassifier) c).classify(example, depthLimit);
+			} else {
+				return c.classify(example);
+			}
+		});
+	}
+	
+	/**
+	 * vote returns the label predicted by the most classifiers
+	 * 
+	 * @param prediction what each classifier predicts
+	 * @return label
+	 */
+	private double vote(ToDoubleFunction<Classifier> prediction) {
 		Map<Double, Integer> labelVotes = new HashMap<>();
 		for (Classifier c : classifiers) {
-			double classification = c.classify(example);
+			double classification = prediction.applyAsDouble(c);
 			labelVotes.put(classification, labelVotes.getOrDefault(classification, 0) + 1);
 		}
 		
@@ -199,6 +231,18 @@ public class BaggingClassifier implements Classifier {
 		return confidence / numVotes;
 	}
 	
+	/**
+	 * Replaces each trained decision tree in the bag with a compiled
+	 * version of itself, which classifies the same but faster
+	 */
+	public void compileTrees() {
+		for (int i = 0; i < n; i++) {
+			if (classifiers[i] instanceof BinaryDecisionTreeClassifier) {
+				classifiers[i] = ((BinaryDecisionTreeClassifier) classifiers[i]).compile();
+			}
+		}
+	}
+	
 	///////////////
 	//  UTILITY
 	///////////////
@@ -264,4 +308,23 @@ public class BaggingClassifier implements Classifier {
 	public void setClassifier(int i, Classifier c) {
 		classifiers[i] = c;
 	}
+	
+	/**
+	 * Gets the number of classifiers
+	 * 
+	 * @return number of classifiers
+	 */
+	public int getNumClassifiers() {
+		return n;
+	}
+	
+	/**
+	 * Gets an individual classifier in our array
+	 * 
+	 * @param int i: classifier to get
+	 * @return the classifier
+	 */
+	public Classifier getClassifier(int i) {
+		return classifiers[i];
+	}
 }
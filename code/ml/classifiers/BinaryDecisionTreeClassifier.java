@@ -1,12 +1,17 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
 
 import ml.data.DataSet;
 import ml.data.Example;
+import ml.utils.ArgSort;
 import ml.utils.HashMapCounter;
 
 /**
@@ -22,12 +27,32 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 	//private DataSet allData;
 	private HashMap<Integer,String> featureMap;
 	private Set<Integer> featureIndices;
-	private DecisionTreeNode decisionTree;
+	private int[] sortedFeatureIndices; // only used with sparse splits
+	private DecisionTreeNode decisionTree; // only built from flatTree for toString when the tree was loaded
+	private FlatDecisionTree flatTree; // decisionTree stored as arrays
 	private int depthMax = Integer.MAX_VALUE;
+	private boolean parallel = false;
+	private int parallelCutoff = 500; // only build subtrees in parallel with at least this many examples
+	private boolean sparseSplits = false;
+	private boolean levelWise = false;
 	
 	public static final double NEGATIVE_LABEL = -1.0;
 	public static final double POSITIVE_LABEL = 1.0;
 	
+	public BinaryDecisionTreeClassifier(){
+	}
+	
+	/**
+	 * Create an already trained classifier from a flattened tree (e.g. one loaded
+	 * by TreeModelIO).  The linked version of the tree isn't needed to classify, so
+	 * it's only built if toString is called.
+	 * 
+	 * @param flatTree
+	 */
+	BinaryDecisionTreeClassifier(FlatDecisionTree flatTree){
+		this.flatTree = flatTree;
+	}
+	
 	public void train(DataSet data) {
 		if( data.getData().size() == 0 ){
 			throw new RuntimeException("Tried to train without any data");
@@ -35,7 +60,67 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 		
 		featureMap = data.getFeatureMap();
 		featureIndices = data.getAllFeatureIndices();
-		decisionTree = buildTree(data.getData(), new HashSet<Integer>(), depthMax);
+		sortedFeatureIndices = sparseSplits ? data.getSortedFeatureIndices() : null;
+		
+		if( levelWise && !sparseSplits ){
+			decisionTree = new LevelWiseTreeBuilder(data, parallel).build(depthMax);
+		}else if( parallel ){
+			decisionTree = ForkJoinPool.commonPool().invoke(new SubtreeTask(data.getData(), new HashSet<Integer>(), depthMax));
+		}else{
+			decisionTree = buildTree(data.getData(), new HashSet<Integer>(), depthMax);
+		}
+		
+		// compile the tree into arrays for classifying
+		flatTree = new FlatDecisionTree(decisionTree);
+	}
+	
+	/**
+	 * Set whether the candidate features for a split and large subtrees should be
+	 * evaluated in parallel (default false).  Both run on the common fork-join pool,
+	 * so leave this off if the trees are already being trained in parallel.
+	 * 
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel){
+		this.parallel = parallel;
+	}
+	
+	/**
+	 * Set the smallest number of examples at a node for its subtrees to be
+	 * built in parallel (only used if parallel is set)
+	 * 
+	 * @param parallelCutoff
+	 */
+	public void setParallelCutoff(int parallelCutoff){
+		this.parallelCutoff = parallelCutoff;
+	}
+	
+	/**
+	 * Set whether splits should be found by only looking at the non-zero feature
+	 * values (default false).  This is much faster for sparse data, e.g. text,
+	 * since the time to find a split depends on the number of non-zero values
+	 * rather than the number of examples times the number of features.
+	 * 
+	 * In this mode the thresholds considered are exactly the distinct values
+	 * of the feature, so the tree learned may differ slightly from the default
+	 * mode when examples share a value.
+	 * 
+	 * @param sparseSplits
+	 */
+	public void setSparseSplits(boolean sparseSplits){
+		this.sparseSplits = sparseSplits;
+	}
+	
+	/**
+	 * Set whether the tree should be grown one level at a time (default false).
+	 * The data is sorted by each feature once up front and each level of the tree
+	 * takes one pass over the sorted data, which is faster for deep trees and large
+	 * data sets.  The tree learned is the same.  Not used with sparse splits.
+	 * 
+	 * @param levelWise
+	 */
+	public void setLevelWise(boolean levelWise){
+		this.levelWise = levelWise;
 	}
 	
 	/**
@@ -77,17 +162,20 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 			// split on the best feature
 			ArrayList<Example>[] splits = splitData(currentData, bestFeature, threshold);
 			
-			// create a new decision tree node
-			DecisionTreeNode node = new DecisionTreeNode(bestFeature, threshold);
+			// create a new decision tree node.  We keep the majority label so the
+			// tree can also be used as if it had been cut off at this node.
+			DecisionTreeNode node = new DecisionTreeNode(bestFeature, threshold, majority.majorityLabel, majority.confidence);
 			
 			HashSet<Integer> featureCopy = (HashSet<Integer>)usedFeatures.clone();
 			featureCopy.add(bestFeature);
 			
-			// left branch
-			if( splits[0].size() == 0 ){
-				node.setLeft(new DecisionTreeNode(majority.majorityLabel, majority.confidence));
-			}else{
-				node.setLeft(buildTree(splits[0],featureCopy, depthLimit-1));
+			// the two subtrees don't share anything that changes, so if there's enough
+			// data build the left subtree in a separate task while we build the right
+			SubtreeTask leftTask = null;
+			
+			if( parallel && splits[0].size() >= parallelCutoff && splits[1].size() > 0 ){
+				leftTask = new SubtreeTask(splits[0], featureCopy, depthLimit-1);
+				leftTask.fork();
 			}
 			
 			// right branch
@@ -97,6 +185,15 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 				node.setRight(buildTree(splits[1], featureCopy, depthLimit-1));
 			}
 			
+			// left branch
+			if( leftTask != null ){
+				node.setLeft(leftTask.join());
+			}else if( splits[0].size() == 0 ){
+				node.setLeft(new DecisionTreeNode(majority.majorityLabel, majority.confidence));
+			}else{
+				node.setLeft(buildTree(splits[0],featureCopy, depthLimit-1));
+			}
+			
 			return node;
 		}
 	}
@@ -104,6 +201,10 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 	/**
 	 * Get the best feature to split on based on training error.
 	 * 
+	 * With sparse splits only the features with a non-zero value at this node are
+	 * evaluated.  The rest all send every example left, so they're scored once as
+	 * "no split" and only the smallest of them can be picked.
+	 * 
 	 * @param currentData the current set of examples
 	 * @param usedFeatures which features have been used already and are NOT eligible for splitting on
 	 * @return the index of the best feature
@@ -113,25 +214,77 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 		double bestFeatureScore = 1.0; // lower is better for now
 		double bestThreshold = -1.0;
 		
-		for( int featureIndex: featureIndices){
+		SparseColumns columns = sparseSplits ? new SparseColumns(currentData) : null;
+		Set<Integer> candidateSet = sparseSplits ? columns.getFeatureIndices() : featureIndices;
+		int[] candidates = new int[candidateSet.size()];
+		int numCandidates = 0;
+		
+		for( int featureIndex: candidateSet){
 			if( !usedFeatures.contains(featureIndex) ){
-				
-				double[] errorInfo = averageTrainingError(currentData, featureIndex);
-				double error = errorInfo[0];
-				double threshold = errorInfo[1];
-									
-				if( error < bestFeatureScore ||
-					(error == bestFeatureScore && featureIndex < bestFeature )){
-					bestFeatureScore = error;
-					bestFeature = featureIndex;
-					bestThreshold = threshold;
-				}
+				candidates[numCandidates++] = featureIndex;
+			}
+		}
+		
+		// each feature is evaluated independently, so we can evaluate them in parallel
+		double[][] errorInfo = new double[numCandidates][];
+		IntStream range = IntStream.range(0, numCandidates);
+		
+		if( parallel ){
+			range = range.parallel();
+		}
+		
+		if( sparseSplits ){
+			range.forEach(i -> errorInfo[i] = columns.averageTrainingError(candidates[i]));
+		}else{
+			range.forEach(i -> errorInfo[i] = averageTrainingError(currentData, candidates[i]));
+		}
+		
+		for( int i = 0; i < numCandidates; i++ ){
+			int featureIndex = candidates[i];
+			double error = errorInfo[i][0];
+			double threshold = errorInfo[i][1];
+			
+			if( error < bestFeatureScore ||
+				(error == bestFeatureScore && featureIndex < bestFeature )){
+				bestFeatureScore = error;
+				bestFeature = featureIndex;
+				bestThreshold = threshold;
+			}
+		}
+		
+		if( sparseSplits ){
+			int absentFeature = getFirstAbsentFeature(columns, usedFeatures);
+			double error = columns.noSplitError();
+			
+			if( absentFeature != -1 &&
+				(error < bestFeatureScore || (error == bestFeatureScore && absentFeature < bestFeature)) ){
+				bestFeature = absentFeature;
+				bestThreshold = 0.0;
 			}
 		}
 		
 		return new double[] {bestFeature, bestThreshold};
 	}
 	
+	/**
+	 * Get the smallest feature that hasn't been used and has no non-zero values at
+	 * this node.  Every feature skipped is either used or has a column, so this looks
+	 * at no more than usedFeatures.size() + the number of columns + 1 features.
+	 * 
+	 * @param columns
+	 * @param usedFeatures
+	 * @return the feature, or -1 if every unused feature has a non-zero value
+	 */
+	private int getFirstAbsentFeature(SparseColumns columns, HashSet<Integer> usedFeatures){
+		for( int featureIndex: sortedFeatureIndices ){
+			if( !usedFeatures.contains(featureIndex) && !columns.getFeatureIndices().contains(featureIndex) ){
+				return featureIndex;
+			}
+		}
+		
+		return -1;
+	}
+	
 	/**
 	 * Get the average training error on this data set if we split on featureIndex
 	 * 
@@ -140,30 +293,41 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 	 * @return the error
 	 */
 	private double[] averageTrainingError(ArrayList<Example> data, int featureIndex){		
-		// sort the data
-		data.sort((o1, o2) -> Double.compare(o1.getFeature(featureIndex),o2.getFeature(featureIndex)));
+		// sort the data by this feature.  We sort an index array rather than the data
+		// itself so that multiple features can be evaluated at the same time.
+		int size = data.size();
+		double[] values = new double[size];
+		boolean[] negative = new boolean[size];
+		
+		for (int i = 0; i < size; i++) {
+			Example e = data.get(i);
+			values[i] = e.getFeature(featureIndex);
+			negative[i] = e.getLabel() == NEGATIVE_LABEL;
+		}
+		
+		int[] order = ArgSort.argsort(values);
 		
 		int left_neg, left_pos, right_neg, right_pos;
 		left_neg = left_pos = right_neg = right_pos = 0;
 		
 		// Initialize first pass
-		if (data.get(0).getLabel() == NEGATIVE_LABEL) {
+		if (negative[order[0]]) {
 			left_neg++;
 		} else left_pos++;
 		
-		for (int i=1; i<data.size(); i++) {
-			if (data.get(i).getLabel() == NEGATIVE_LABEL) {
+		for (int i=1; i<size; i++) {
+			if (negative[order[i]]) {
 				right_neg++;
 			} else right_pos++;
 		}
 		
 		int leftCount = left_neg > left_pos ? left_neg : left_pos;
 		int rightCount = right_neg > right_pos ? right_neg : right_pos;
-		double bestAccuracy = (leftCount+rightCount)/(double)data.size();
-		double bestThreshold = data.get(0).getFeature(featureIndex);
+		double bestAccuracy = (leftCount+rightCount)/(double)size;
+		double bestThreshold = values[order[0]];
 		
-		for (int i = 1; i < data.size(); i++) {
-			if (data.get(i).getLabel() == NEGATIVE_LABEL) {
+		for (int i = 1; i < size; i++) {
+			if (negative[order[i]]) {
 				left_neg++; right_neg--;
 			} else {
 				left_pos++; right_pos--;
@@ -172,11 +336,11 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 			leftCount = left_neg > left_pos ? left_neg : left_pos;
 			rightCount = right_neg > right_pos ? right_neg : right_pos;
 			
-			double accuracy = (leftCount+rightCount)/(double)data.size();
+			double accuracy = (leftCount+rightCount)/(double)size;
 
 			if (accuracy > bestAccuracy) {
 				bestAccuracy = accuracy;
-				bestThreshold = data.get(i).getFeature(featureIndex);
+				bestThreshold = values[order[i]];
 			}
 		}
 
@@ -211,6 +375,10 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 	}
 	
 	public String toString(){
+		if( decisionTree == null ){
+			decisionTree = flatTree.toDecisionTreeNode(0);
+		}
+		
 		return decisionTree.treeString(featureMap);
 	}
 	
@@ -238,37 +406,282 @@ public class BinaryDecisionTreeClassifier implements Classifier{
 		
 	@Override
 	public double classify(Example example) {
-		return findLeaf(example).prediction();
+		return flatTree.prediction(findLeaf(example));
 	}
 	
 	@Override
 	public double confidence(Example example) {
-		return findLeaf(example).confidence();
+		return flatTree.confidence(findLeaf(example));
 	}
 	
 	/**
-	 * Figure out which leaf this example falls into
+	 * Classify the example as if the tree had been trained with depthLimit
+	 * as its depth limit (valid for any depthLimit up to the one it was
+	 * trained with).  Since the tree is built greedily, a tree built with
+	 * a smaller depth limit is exactly the top of the deeper tree.
+	 * 
+	 * @param example
+	 * @param depthLimit
+	 * @return the class label predicted
+	 */
+	public double classify(Example example, int depthLimit) {
+		return flatTree.prediction(flatTree.findNode(example, depthLimit));
+	}
+	
+	/**
+	 * Classify the example with every depth limit from 0 to maxDepth in a single
+	 * walk down the tree
 	 * 
 	 * @param example
-	 * @return the leaf node
+	 * @param maxDepth
+	 * @return the predictions, where entry d is the prediction with depth limit d
 	 */
-	private DecisionTreeNode findLeaf(Example example){
-		DecisionTreeNode current = decisionTree;
+	public double[] classifyByDepth(Example example, int maxDepth) {
+		double[] predictions = new double[maxDepth+1];
+		int current = 0;
 		
-		while( !current.isLeaf() ){
-			int feature = current.getFeatureIndex();
+		for( int depth = 0; depth <= maxDepth; depth++ ){
+			predictions[depth] = flatTree.prediction(current);
 			
-			if( example.getFeature(feature) <= current.getThreshold() ){
-				// go left
-				current = current.getLeft();
-			}else{
-				current = current.getRight();
+			if( !flatTree.isLeaf(current) ){
+				if( example.getFeature(flatTree.getFeatureIndex(current)) <= flatTree.getThreshold(current) ){
+					current = flatTree.getLeft(current);
+				}else{
+					current = flatTree.getRight(current);
+				}
 			}
 		}
 		
-		return current;
+		return predictions;
 	}
+	
+	/**
+	 * Classify an example given as a row of feature values
+	 * 
+	 * @param row the feature values of the example, indexed by feature index
+	 * @return the class label predicted
+	 */
+	public double classify(double[] row) {
+		return flatTree.prediction(flatTree.findLeaf(row));
+	}
+	
+	/**
+	 * Get the confidence for an example given as a row of feature values
+	 * 
+	 * @param row the feature values of the example, indexed by feature index
+	 * @return the confidence
+	 */
+	public double confidence(double[] row) {
+		return flatTree.confidence(flatTree.findLeaf(row));
+	}
+	
+	/**
+	 * Get the trained tree stored as arrays.  Should only be called *after* train.
+	 * 
+	 * @return the flattened tree
+	 */
+	public FlatDecisionTree getFlatTree(){
+		return flatTree;
+	}
+	
+	/**
+	 * Compile the trained tree into its own class.  The compiled classifier
+	 * makes the same predictions but is faster at classifying.
+	 * 
+	 * @return the compiled tree
+	 */
+	public CompiledTreeClassifier compile(){
+		return new CompiledTreeClassifier(flatTree);
+	}
+	
+	/**
+	 * Figure out which leaf this example falls into
+	 * 
+	 * @param example
+	 * @return the index of the leaf node in the flattened tree
+	 */
+	private int findLeaf(Example example){
+		return flatTree.findLeaf(example);
+	}
+		
+	/**
+	 * Fork/join task for building a subtree in parallel
+	 * 
+	 * @author huey
+	 *
+	 */
+	private class SubtreeTask extends RecursiveTask<DecisionTreeNode>{
+		private static final long serialVersionUID = 1L;
+		
+		private ArrayList<Example> currentData;
+		private HashSet<Integer> usedFeatures;
+		private int depthLimit;
+		
+		public SubtreeTask(ArrayList<Example> currentData, HashSet<Integer> usedFeatures, int depthLimit){
+			this.currentData = currentData;
+			this.usedFeatures = usedFeatures;
+			this.depthLimit = depthLimit;
+		}
+		
+		@Override
+		protected DecisionTreeNode compute() {
+			return buildTree(currentData, usedFeatures, depthLimit);
+		}
+	}
+	
+	/**
+	 * The non-zero feature values of the data at a node stored by feature (i.e.
+	 * a postings list for each feature), for finding splits on sparse data.
+	 * Features with no non-zero values at the node have no column.
+	 * 
+	 * @author huey
+	 *
+	 */
+	private static class SparseColumns{
+		private HashMap<Integer, Column> columns = new HashMap<Integer, Column>();
+		private int size;
+		private int negatives;
+		private int positives;
+		
+		public SparseColumns(ArrayList<Example> data){
+			size = data.size();
+			
+			for( Example e: data ){
+				boolean negative = e.getLabel() == NEGATIVE_LABEL;
+				
+				if( negative ){
+					negatives++;
+				}else{
+					positives++;
+				}
+				
+				for( int featureIndex: e.getFeatureSet() ){
+					double value = e.getFeature(featureIndex);
+					
+					if( value != 0.0 ){
+						Column column = columns.get(featureIndex);
+						
+						if( column == null ){
+							column = new Column();
+							columns.put(featureIndex, column);
+						}
+						
+						column.add(value, negative);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * @return the features with a non-zero value at this node
+		 */
+		public Set<Integer> getFeatureIndices(){
+			return columns.keySet();
+		}
+		
+		/**
+		 * @return the error when every example goes left, i.e. splitting on a feature
+		 * with no column
+		 */
+		public double noSplitError(){
+			return 1 - Math.max(negatives, positives)/(double)size;
+		}
+		
+		/**
+		 * Get the average training error on this data if we split on featureIndex.
+		 * The examples with a zero value aren't looked at: the label counts for them
+		 * are the node totals minus the counts for the non-zero values.
+		 * 
+		 * @param featureIndex
+		 * @return the error and the threshold to split on
+		 */
+		public double[] averageTrainingError(int featureIndex){
+			Column column = columns.get(featureIndex);
+			
+			if( column == null ){
+				return new double[] {noSplitError(), 0.0};
+			}
+			
+			int[] order = new int[column.size];
+			int zeroNeg = negatives;
+			int zeroPos = positives;
+			
+			for( int i = 0; i < column.size; i++ ){
+				order[i] = i;
+				
+				if( column.negative[i] ){
+					zeroNeg--;
+				}else{
+					zeroPos--;
+				}
+			}
+			
+			ArgSort.argsort(column.values, order, column.size);
+			
+			// go through the distinct values in increasing order, with the zeros
+			// in their place between the negative and positive values
+			int left_neg = 0, left_pos = 0;
+			boolean zerosAdded = zeroNeg + zeroPos == 0;
+			double bestAccuracy = -1.0;
+			double bestThreshold = 0.0;
+			int i = 0;
+			
+			while( i < column.size || !zerosAdded ){
+				double threshold;
+				
+				if( !zerosAdded && (i == column.size || column.values[order[i]] > 0) ){
+					threshold = 0.0;
+					left_neg += zeroNeg;
+					left_pos += zeroPos;
+					zerosAdded = true;
+				}else{
+					threshold = column.values[order[i]];
+					
+					while( i < column.size && column.values[order[i]] == threshold ){
+						if( column.negative[order[i]] ){
+							left_neg++;
+						}else{
+							left_pos++;
+						}
+						
+						i++;
+					}
+				}
+				
+				int leftCount = Math.max(left_neg, left_pos);
+				int rightCount = Math.max(negatives - left_neg, positives - left_pos);
+				double accuracy = (leftCount+rightCount)/(double)size;
+				
+				if( accuracy > bestAccuracy ){
+					bestAccuracy = accuracy;
+					bestThreshold = threshold;
+				}
+			}
+			
+			return new double[] {1-bestAccuracy, bestThreshold};
+		}
 		
+		/**
+		 * The non-zero values for one feature and whether each example is negative
+		 */
+		private static class Column{
+			private double[] values = new double[4];
+			private boolean[] negative = new boolean[4];
+			private int size;
+			
+			public void add(double value, boolean isNegative){
+				if( size == values.length ){
+					values = Arrays.copyOf(values, 2*size);
+					negative = Arrays.copyOf(negative, 2*size);
+				}
+				
+				values[size] = value;
+				negative[size] = isNegative;
+				size++;
+			}
+		}
+	}
+	
 	/**
 	 * A container class to allow us to return multiple values when calculting
 	 * the majority label from a collection of data.
@@ -0,0 +1,17 @@
+package ml.classifiers;
+
+/**
+ * A decision tree that has been compiled into its own class by TreeCompiler.
+ * 
+ * @author huey
+ * 
+ */
+interface CompiledTree {
+	/**
+	 * Figure out which leaf this example falls into
+	 * 
+	 * @param row the feature values of the example, indexed by feature index
+	 * @return the index of the leaf node in the flattened tree the class was compiled from
+	 */
+	public int findLeaf(double[] row);
+}
@@ -0,0 +1,113 @@
+package ml.classifiers;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * A trained decision tree that has been compiled into its own class for fast
+ * classification.  Predictions are identical to the BinaryDecisionTreeClassifier
+ * it was compiled from.  Get one with BinaryDecisionTreeClassifier.compile().
+ * 
+ * The compiled tree reads feature values from a row indexed by feature index, so
+ * classify(Example) has to build a row first (only the features the tree splits on
+ * are copied in).  classify(double[]) and confidence(double[]) take the row directly
+ * and don't allocate anything, so they're the fast path when the data is already
+ * in rows.
+ * 
+ * @author huey
+ * 
+ */
+public class CompiledTreeClassifier implements Classifier {
+	private FlatDecisionTree flatTree;
+	private CompiledTree compiledTree;
+	private int[] usedFeatures; // the features the tree splits on
+	private int rowLength; // the length of a row that includes all of the used features
+	
+	/**
+	 * Compile flatTree
+	 * 
+	 * @param flatTree
+	 */
+	CompiledTreeClassifier(FlatDecisionTree flatTree){
+		this.flatTree = flatTree;
+		compiledTree = TreeCompiler.compile(flatTree);
+		usedFeatures = flatTree.getUsedFeatures();
+		rowLength = flatTree.getMaxFeatureIndex()+1;
+	}
+	
+	/**
+	 * Compiled trees are fixed, so this always throws an exception.  Train a
+	 * BinaryDecisionTreeClassifier and compile it instead.
+	 */
+	@Override
+	public void train(DataSet data) {
+		throw new RuntimeException("Compiled decision trees can't be retrained");
+	}
+	
+	@Override
+	public double classify(Example example) {
+		return flatTree.prediction(compiledTree.findLeaf(getRow(example)));
+	}
+	
+	@Override
+	public double confidence(Example example) {
+		return flatTree.confidence(compiledTree.findLeaf(getRow(example)));
+	}
+	
+	/**
+	 * Classify the example as if the tree had been trained with depthLimit as its
+	 * depth limit (see BinaryDecisionTreeClassifier.classify(Example, int)).  The
+	 * compiled code only finds leaves, so this walks the flattened tree instead.
+	 * 
+	 * @param example
+	 * @param depthLimit
+	 * @return the class label predicted
+	 */
+	public double classify(Example example, int depthLimit) {
+		return flatTree.prediction(flatTree.findNode(example, depthLimit));
+	}
+	
+	/**
+	 * Get the feature values of the example that the tree uses as a row that can
+	 * be passed to the compiled tree
+	 * 
+	 * @param example
+	 * @return the row, indexed by feature index
+	 */
+	private double[] getRow(Example example){
+		double[] row = new double[rowLength];
+		
+		for( int f: usedFeatures ){
+			row[f] = example.getFeature(f);
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * @return the tree this classifier was compiled from
+	 */
+	FlatDecisionTree getFlatTree(){
+		return flatTree;
+	}
+	
+	/**
+	 * Classify an example given as a row of feature values
+	 * 
+	 * @param row the feature values of the example, indexed by feature index
+	 * @return the class label predicted
+	 */
+	public double classify(double[] row) {
+		return flatTree.prediction(compiledTree.findLeaf(row));
+	}
+	
+	/**
+	 * Get the confidence for an example given as a row of feature values
+	 * 
+	 * @param row the feature values of the example, indexed by feature index
+	 * @return the confidence
+	 */
+	public double confidence(double[] row) {
+		return flatTree.confidence(compiledTree.findLeaf(row));
+	}
+}
@@ -13,9 +13,12 @@ public class DecisionTreeNode {
 	// whether or not this is a leaf
 	private boolean leaf;
 
-	// only applicable for leaves
+	// for leaves, the prediction.  Internal nodes may also record the majority
+	// label of the training data that reached them, i.e. what they would predict
+	// if the tree were cut off at this node.
 	private double prediction = 0.0;
 	private double confidence = 0.0;
+	private boolean hasPrediction;
 	
 	// only applicable if it's an internal node
 	private int featureIndex;	// the index of the feature we're checking
@@ -31,6 +34,7 @@ public class DecisionTreeNode {
 	 */
 	public DecisionTreeNode(double prediction, double confidence){
 		leaf = true;
+		hasPrediction = true;
 		this.prediction = prediction;
 		this.confidence = confidence;
 	}
@@ -55,6 +59,22 @@ public class DecisionTreeNode {
 		this.featureIndex = featureIndex;
 		this.threshold = threshold;
 	}
+	
+	/**
+	 * Create an internal node that splits on featureIndex with input threshold and
+	 * that records the prediction to make if the tree is cut off at this node
+	 * 
+	 * @param featureIndex
+	 * @param threshold
+	 * @param prediction the majority label of the data at this node
+	 * @param confidence the confidence of the majority label
+	 */
+	public DecisionTreeNode(int featureIndex, double threshold, double prediction, double confidence){
+		this(featureIndex, threshold);
+		hasPrediction = true;
+		this.prediction = prediction;
+		this.confidence = confidence;
+	}
 
 	/**
 	 * @return whether or not this node is a leaf
@@ -64,12 +84,19 @@ public class DecisionTreeNode {
 	}
 	
 	/**
-	 * Only valid if this node is a leaf.
+	 * @return whether this node has a prediction (always true for leaves)
+	 */
+	public boolean hasPrediction(){
+		return hasPrediction;
+	}
+	
+	/**
+	 * Only valid if this node is a leaf or an internal node created with a prediction.
 	 * 
 	 * @return the prediction at this node
 	 */
 	public double prediction(){
-		if( !leaf ){
+		if( !hasPrediction ){
 			throw new RuntimeException("Can only call prediction on a leaf node");
 		}
 		
@@ -77,12 +104,12 @@ public class DecisionTreeNode {
 	}
 	
 	/**
-	 * Only valid if this node is a leaf.
+	 * Only valid if this node is a leaf or an internal node created with a prediction.
 	 * 
 	 * @return the confidence at this node
 	 */
 	public double confidence(){
-		if( !leaf ){
+		if( !hasPrediction ){
 			throw new RuntimeException("Can only call prediction on a leaf node");
 		}
 		
@@ -0,0 +1,64 @@
+package ml.classifiers;
+
+/**
+ * Decides when an iterative learner should stop training.  After each iteration the
+ * learner reports a score where lower is better (e.g. the loss on held out data) and
+ * training should stop once the score hasn't improved on the best score by more than
+ * tolerance (relative to the best score) for patience iterations.
+ * 
+ * The learner should checkpoint its model whenever update reports a new best score and
+ * restore the checkpoint when it stops, so that it ends up with the best model.
+ * 
+ * @author huey
+ * 
+ */
+class EarlyStopping {
+	private int patience;
+	private double tolerance;
+	
+	private double bestScore = Double.POSITIVE_INFINITY;
+	private int bestIteration = -1;
+	private int iteration = 0; // the number of scores seen
+	
+	/**
+	 * @param patience the number of iterations without improvement to allow
+	 * @param tolerance how much (relative to the best score) a score must improve by to count
+	 */
+	public EarlyStopping(int patience, double tolerance){
+		this.patience = patience;
+		this.tolerance = tolerance;
+	}
+	
+	/**
+	 * Record the score after the next iteration
+	 * 
+	 * @param score
+	 * @return whether it's the new best score
+	 */
+	public boolean update(double score){
+		// NaN never counts as an improvement
+		boolean improved = bestIteration == -1 ? !Double.isNaN(score) : score < bestScore - tolerance*Math.abs(bestScore);
+		
+		if( improved ){
+			bestScore = score;
+			bestIteration = iteration;
+		}
+		
+		iteration++;
+		return improved;
+	}
+	
+	/**
+	 * @return whether patience iterations have gone by without the score improving
+	 */
+	public boolean shouldStop(){
+		return iteration - 1 - bestIteration >= patience;
+	}
+	
+	/**
+	 * @return the (0-based) iteration with the best score, or -1 if there hasn't been one
+	 */
+	public int getBestIteration(){
+		return bestIteration;
+	}
+}
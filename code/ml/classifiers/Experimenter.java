@@ -1,5 +1,7 @@
 package ml.classifiers;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -18,6 +20,13 @@ public class Experimenter {
 //		tuneBaggedPerceptron();
 //		tuneDecisionTree();
 //		tuneBaggedDecisionTree();
+//		tuneKNN();
+//		testKNNCondensing();
+//		testRandomForest();
+//		testGradientBoosting();
+//		testTreeModelIO();
+//		testParameterMixing();
+//		testEarlyStopping();
 		compareClassifiers();
 	}
 	
@@ -39,18 +48,26 @@ public class Experimenter {
 		
 		CrossValidationSet cvs = new CrossValidationSet(data, 10);
 		PerceptronClassifier c = new PerceptronClassifier();
-
-		for (int it = 1; it <= 30; it++) {
-			c.setIterations(it);
+		
+		// the weights after each iteration are the weights from training with fewer
+		// iterations, so train once per split and evaluate every iteration count
+		int maxIterations = 30;
+		c.setIterations(maxIterations);
+		c.setKeepSnapshots(true);
+		double[] accuracy = new double[maxIterations];
+		
+		for (int i = 0; i < 10; i++) {
+			DataSetSplit splitData = cvs.getValidationSet(i);
+			c.train(splitData.getTrain());
+			double[] splitAccuracy = getAccuracyBySnapshot(c, splitData.getTest());
 			
-			double accuracy = 0.0;
-			for (int i = 0; i < 10; i++) {
-				DataSetSplit splitData = cvs.getValidationSet(i);
-				c.train(splitData.getTrain());
-				accuracy += getAccuracy(c,splitData.getTest());
+			for (int it = 0; it < maxIterations; it++) {
+				accuracy[it] += splitAccuracy[it];
 			}
-			
-			System.out.println(accuracy/10);
+		}
+		
+		for (int it = 0; it < maxIterations; it++) {
+			System.out.println(accuracy[it]/10);
 		}
 	}
 	
@@ -81,18 +98,25 @@ public class Experimenter {
 		
 		CrossValidationSet cvs = new CrossValidationSet(data, 10);
 		BinaryDecisionTreeClassifier c = new BinaryDecisionTreeClassifier();
-
-		for (int d = 1; d <= 8; d++) {
-			c.setDepthLimit(d);
+		
+		// a tree built with a smaller depth limit is just the top of the deepest
+		// tree, so train once per split and evaluate every depth from it
+		int maxDepth = 8;
+		c.setDepthLimit(maxDepth);
+		double[] accuracy = new double[maxDepth+1];
+		
+		for (int i = 0; i < 10; i++) {
+			DataSetSplit splitData = cvs.getValidationSet(i);
+			c.train(splitData.getTrain());
+			double[] splitAccuracy = getAccuracyByDepth(c, splitData.getTest(), maxDepth);
 			
-			double accuracy = 0.0;
-			for (int i = 0; i < 10; i++) {
-				DataSetSplit splitData = cvs.getValidationSet(i);
-				c.train(splitData.getTrain());
-				accuracy += getAccuracy(c,splitData.getTest());
+			for (int d = 1; d <= maxDepth; d++) {
+				accuracy[d] += splitAccuracy[d];
 			}
-			
-			System.out.println(accuracy/10);
+		}
+		
+		for (int d = 1; d <= maxDepth; d++) {
+			System.out.println(accuracy[d]/10);
 		}
 	}
 	
@@ -103,26 +127,240 @@ public class Experimenter {
 		
 		CrossValidationSet cvs = new CrossValidationSet(data, 10);
 		BaggingClassifier c = new BaggingClassifier();
+		int maxDepth = 15;
 
 		for (int n = 1; n <= 20; n++) {
 			c.setNumClassifiers(n);
+			c.setClassifierConstructor(n + "t" + maxDepth);
 			
-			for (int d = 1; d <= 15; d++) {
-				c.setClassifierConstructor(n + "t" + d);
+			// train the bag once per split and evaluate it cut off at every depth
+			double[] accuracy = new double[maxDepth+1];
+			for (int i = 0; i < 10; i++) {
+				DataSetSplit splitData = cvs.getValidationSet(i);
+				c.train(splitData.getTrain());
 				
-				double accuracy = 0.0;
-				for (int i = 0; i < 10; i++) {
-					DataSetSplit splitData = cvs.getValidationSet(i);
-					c.train(splitData.getTrain());
-					accuracy += getAccuracy(c,splitData.getTest());
+				for (int d = 1; d <= maxDepth; d++) {
+					accuracy[d] += getAccuracy(c, splitData.getTest(), d);
 				}
-				System.out.println(accuracy/10);
+			}
+			
+			for (int d = 1; d <= maxDepth; d++) {
+				System.out.println(accuracy[d]/10);
 			}
 			
 			System.out.println();
 		}
 	}
 	
+	public static void tuneKNN() {
+		DataSet data = new DataSet("data/abalone.data", "abalone");
+		
+		KNNTuner tuner = new KNNTuner(data, 10);
+		tuner.setMaxK(50);
+		
+		double[] accuracies = tuner.tune();
+		
+		for (int k = 1; k <= accuracies.length; k++) {
+			System.out.println(k + "\t" + accuracies[k-1]);
+		}
+	}
+	
+	public static void testRandomForest() {
+		DataSet data = new DataSet("data/ionosphere.data", "ionosphere");
+		CrossValidationSet cvs = new CrossValidationSet(data, 10);
+		
+		BaggingClassifier bag = new BaggingClassifier(50);
+		bag.setClassifierConstructor("50t");
+		RandomForestClassifier forest = new RandomForestClassifier();
+		forest.setNumTrees(50);
+		
+		Classifier[] classifiers = {bag, forest};
+		String[] names = {"bagged trees", "random forest"};
+		
+		for (int c = 0; c < classifiers.length; c++) {
+			double accuracy = 0.0;
+			long start = System.currentTimeMillis();
+			
+			for (int i = 0; i < 10; i++) {
+				DataSetSplit splitData = cvs.getValidationSet(i);
+				classifiers[c].train(splitData.getTrain());
+				accuracy += getAccuracy(classifiers[c], splitData.getTest());
+			}
+			
+			System.out.println(names[c] + ": accuracy " + accuracy/10 + ", time " + (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+	
+	public static void testGradientBoosting() {
+		DataSet data = new DataSet("data/abalone.data", "abalone");
+		CrossValidationSet cvs = new CrossValidationSet(data, 10);
+		
+		GradientBoostingClassifier boosted = new GradientBoostingClassifier();
+		boosted.setNumTrees(1000);
+		boosted.setEarlyStopping(0.2, 20);
+		
+		double accuracy = 0.0;
+		int numTrees = 0;
+		long start = System.currentTimeMillis();
+		
+		for (int i = 0; i < 10; i++) {
+			DataSetSplit splitData = cvs.getValidationSet(i);
+			boosted.train(splitData.getTrain());
+			numTrees += boosted.getTrees().length;
+			
+			double[] predictions = boosted.classify(splitData.getTest().getData());
+			
+			for (int j = 0; j < predictions.length; j++) {
+				if (predictions[j] == splitData.getTest().getData().get(j).getLabel()) {
+					accuracy += 1.0 / predictions.length;
+				}
+			}
+		}
+		
+		System.out.println("gradient boosting: accuracy " + accuracy/10 + ", average trees " + numTrees/10.0 
+			+ ", time " + (System.currentTimeMillis() - start) + "ms");
+	}
+	
+	public static void testTreeModelIO() {
+		DataSet data = new DataSet("data/abalone.data", "abalone");
+		DataSetSplit splitData = data.split(0.8);
+		
+		BinaryDecisionTreeClassifier tree = new BinaryDecisionTreeClassifier();
+		BaggingClassifier bag = new BaggingClassifier(10);
+		bag.setClassifierConstructor("10t");
+		RandomForestClassifier forest = new RandomForestClassifier();
+		GradientBoostingClassifier boosted = new GradientBoostingClassifier();
+		
+		Classifier[] models = {tree, bag, forest, boosted};
+		
+		for (Classifier model : models) {
+			model.train(splitData.getTrain());
+			
+			try {
+				File file = File.createTempFile("model", ".trees");
+				file.deleteOnExit();
+				
+				TreeModelIO.save(model, file.getPath());
+				
+				long start = System.nanoTime();
+				Classifier loaded = TreeModelIO.load(file.getPath());
+				double loadTime = (System.nanoTime() - start) / 1e6;
+				
+				int differences = 0;
+				
+				for (Example e : splitData.getTest().getData()) {
+					if (model.classify(e) != loaded.classify(e) || model.confidence(e) != loaded.confidence(e)) {
+						differences++;
+					}
+				}
+				
+				System.out.println(model.getClass().getSimpleName() + ": " + file.length() + " bytes, loaded in " 
+					+ loadTime + "ms, " + differences + " differences");
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	public static void testParameterMixing() {
+		DataSet data = new DataSet("data/ionosphere.data", "ionosphere");
+		CrossValidationSet cvs = new CrossValidationSet(data, 10);
+		
+		PerceptronClassifier perceptron = new PerceptronClassifier();
+		ParameterMixingPerceptron threads = new ParameterMixingPerceptron();
+		ParameterMixingPerceptron processes = new ParameterMixingPerceptron();
+		processes.setUseProcesses(true);
+		
+		Classifier[] classifiers = {perceptron, threads, processes};
+		String[] names = {"perceptron", "mixing (threads)", "mixing (processes)"};
+		
+		for (int c = 0; c < classifiers.length; c++) {
+			double accuracy = 0.0;
+			long start = System.currentTimeMillis();
+			
+			for (int i = 0; i < 10; i++) {
+				DataSetSplit splitData = cvs.getValidationSet(i);
+				classifiers[c].train(splitData.getTrain());
+				accuracy += getAccuracy(classifiers[c], splitData.getTest());
+			}
+			
+			System.out.println(names[c] + ": accuracy " + accuracy/10 + ", time " + (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+	
+	public static void testEarlyStopping() {
+		DataSet data = new DataSet("data/ionosphere.data", "ionosphere");
+		CrossValidationSet cvs = new CrossValidationSet(data, 10);
+		
+		PerceptronClassifier perceptron = new PerceptronClassifier();
+		perceptron.setIterations(100);
+		
+		GradientDescentClassifier sgd = new GradientDescentClassifier();
+		sgd.setIterations(100);
+		GradientDescentClassifier sgdStopped = new GradientDescentClassifier();
+		sgdStopped.setIterations(100);
+		sgdStopped.setEarlyStopping(0.2, 5);
+		
+		TwoLayerNN nn = new TwoLayerNN(5);
+		nn.setIterations(50);
+		TwoLayerNN nnStopped = new TwoLayerNN(5);
+		nnStopped.setIterations(50);
+		nnStopped.setEarlyStopping(0.2, 5);
+		
+		Classifier[] classifiers = {perceptron, sgd, sgdStopped, nn, nnStopped};
+		String[] names = {"perceptron", "sgd", "sgd (early stopping)", "nn", "nn (early stopping)"};
+		
+		for (int c = 0; c < classifiers.length; c++) {
+			double accuracy = 0.0;
+			int iterations = 0;
+			long start = System.currentTimeMillis();
+			
+			for (int i = 0; i < 10; i++) {
+				DataSetSplit splitData = cvs.getValidationSet(i);
+				classifiers[c].train(splitData.getTrain());
+				accuracy += getAccuracy(classifiers[c], splitData.getTest());
+				iterations += getIterationsRun(classifiers[c]);
+			}
+			
+			System.out.println(names[c] + ": accuracy " + accuracy/10 + ", average iterations " + iterations/10.0 
+				+ ", time " + (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+	
+	private static int getIterationsRun(Classifier classifier) {
+		if (classifier instanceof PerceptronClassifier) {
+			return ((PerceptronClassifier) classifier).getIterationsRun();
+		} else if (classifier instanceof GradientDescentClassifier) {
+			return ((GradientDescentClassifier) classifier).getIterationsRun();
+		} else {
+			return ((TwoLayerNN) classifier).getIterationsRun();
+		}
+	}
+	
+	public static void testKNNCondensing() {
+		DataSet data = new DataSet("data/abalone.data", "abalone");
+		DataSetSplit splitData = data.split(0.8);
+		
+		int[] condensing = {KNNClassifier.NO_CONDENSING, KNNClassifier.CONDENSED_NN, KNNClassifier.EDITED_CONDENSED_NN};
+		double baseAccuracy = 0.0;
+		
+		for (int mode : condensing) {
+			KNNClassifier knn = new KNNClassifier();
+			knn.setCondensing(mode);
+			knn.train(splitData.getTrain());
+			
+			long start = System.currentTimeMillis();
+			double accuracy = getAccuracy(knn, splitData.getTest());
+			long testTime = System.currentTimeMillis() - start;
+			
+			if (mode == KNNClassifier.NO_CONDENSING) baseAccuracy = accuracy;
+			
+			System.out.println("Condensing " + mode + ": kept " + knn.getRetainedSize() 
+				+ " (reduction " + knn.getReductionRatio() + "x), accuracy " + accuracy 
+				+ " (delta " + (accuracy - baseAccuracy) + "), test time " + testTime + "ms");
+		}
+	}
+	
 	public static void testPerceptronBagging() {
 //		DataSet data = new DataSet("data/abalone.data", "abalone");
 		DataSet data = new DataSet("data/ionosphere.data", "ionosphere");
@@ -229,5 +467,84 @@ public class Experimenter {
 		
 		return (double) correct / total;
 	}
+	
+	/**
+	 * Get the accuracy of the tree on the test data for every depth limit
+	 * from 0 to maxDepth, walking the tree once per example
+	 * 
+	 * @param c a tree trained with a depth limit of at least maxDepth
+	 * @param test
+	 * @param maxDepth
+	 * @return the accuracies, where entry d is the accuracy with depth limit d
+	 */
+	public static double[] getAccuracyByDepth(BinaryDecisionTreeClassifier c, DataSet test, int maxDepth) {
+		double[] correct = new double[maxDepth+1];
+		
+		for (Example e : test.getData()) {
+			double[] predictions = c.classifyByDepth(e, maxDepth);
+			
+			for (int d = 0; d <= maxDepth; d++) {
+				if (predictions[d] == e.getLabel()) {
+					correct[d]++;
+				}
+			}
+		}
+		
+		for (int d = 0; d <= maxDepth; d++) {
+			correct[d] /= test.getData().size();
+		}
+		
+		return correct;
+	}
+	
+	/**
+	 * Get the accuracy of the perceptron on the test data after each
+	 * iteration of training.  The perceptron must have been trained with
+	 * setKeepSnapshots(true).
+	 * 
+	 * @param c
+	 * @param test
+	 * @return the accuracies, where entry i is the accuracy after i+1 iterations
+	 */
+	public static double[] getAccuracyBySnapshot(PerceptronClassifier c, DataSet test) {
+		double[] correct = new double[c.getNumSnapshots()];
+		
+		for (Example e : test.getData()) {
+			double[] predictions = c.classifyBySnapshot(e);
+			
+			for (int i = 0; i < predictions.length; i++) {
+				if (predictions[i] == e.getLabel()) {
+					correct[i]++;
+				}
+			}
+		}
+		
+		for (int i = 0; i < correct.length; i++) {
+			correct[i] /= test.getData().size();
+		}
+		
+		return correct;
+	}
+	
+	/**
+	 * Get the accuracy of the bagged trees on the test data with each
+	 * tree cut off at depthLimit
+	 * 
+	 * @param c
+	 * @param test
+	 * @param depthLimit
+	 * @return the accuracy
+	 */
+	public static double getAccuracy(BaggingClassifier c, DataSet test, int depthLimit) {
+		double correct = 0;
+		
+		for (Example e : test.getData()) {
+			if (c.classify(e, depthLimit) == e.getLabel()) {
+				correct++;
+			}
+		}
+		
+		return correct / test.getData().size();
+	}
 
 }
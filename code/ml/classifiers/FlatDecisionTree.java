@@ -0,0 +1,259 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ml.data.Example;
+
+/**
+ * A decision tree stored as parallel arrays rather than linked DecisionTreeNodes.
+ * Nodes are numbered in breadth-first order starting with the root at 0, so the
+ * top levels of the tree that every example passes through are next to each
+ * other in memory.
+ * 
+ * For node i, feature[i] is the feature index it splits on (or LEAF), examples
+ * with a value <= threshold[i] go to node left[i] and the rest to right[i].
+ * prediction[i] and confidence[i] are the prediction at leaves and, if the tree
+ * recorded them, the majority label at internal nodes.
+ * 
+ * @author huey
+ * 
+ */
+public class FlatDecisionTree {
+	public static final int LEAF = -1;
+	
+	private int[] feature;
+	private double[] threshold;
+	private int[] left;
+	private int[] right;
+	private double[] prediction;
+	private double[] confidence;
+	
+	/**
+	 * Flatten the tree rooted at root
+	 * 
+	 * @param root
+	 */
+	public FlatDecisionTree(DecisionTreeNode root){
+		// number the nodes breadth first
+		ArrayList<DecisionTreeNode> nodes = new ArrayList<DecisionTreeNode>();
+		nodes.add(root);
+		
+		for( int i = 0; i < nodes.size(); i++ ){
+			DecisionTreeNode node = nodes.get(i);
+			
+			if( !node.isLeaf() ){
+				nodes.add(node.getLeft());
+				nodes.add(node.getRight());
+			}
+		}
+		
+		int size = nodes.size();
+		feature = new int[size];
+		threshold = new double[size];
+		left = new int[size];
+		right = new int[size];
+		prediction = new double[size];
+		confidence = new double[size];
+		
+		int nextChild = 1;
+		
+		for( int i = 0; i < size; i++ ){
+			DecisionTreeNode node = nodes.get(i);
+			
+			if( node.hasPrediction() ){
+				prediction[i] = node.prediction();
+				confidence[i] = node.confidence();
+			}
+			
+			if( node.isLeaf() ){
+				feature[i] = LEAF;
+			}else{
+				feature[i] = node.getFeatureIndex();
+				threshold[i] = node.getThreshold();
+				
+				// the children were added in the same order
+				left[i] = nextChild;
+				right[i] = nextChild+1;
+				nextChild += 2;
+			}
+		}
+	}
+	
+	/**
+	 * Create a tree directly from its arrays (e.g. when loading a saved tree).  The
+	 * arrays are used as is, not copied.
+	 */
+	FlatDecisionTree(int[] feature, double[] threshold, int[] left, int[] right, double[] prediction, double[] confidence){
+		this.feature = feature;
+		this.threshold = threshold;
+		this.left = left;
+		this.right = right;
+		this.prediction = prediction;
+		this.confidence = confidence;
+	}
+	
+	/**
+	 * Convert the subtree at node back into linked DecisionTreeNodes
+	 * 
+	 * @param node
+	 * @return the root of the subtree
+	 */
+	DecisionTreeNode toDecisionTreeNode(int node){
+		if( feature[node] == LEAF ){
+			return new DecisionTreeNode(prediction[node], confidence[node]);
+		}
+		
+		DecisionTreeNode treeNode = new DecisionTreeNode(feature[node], threshold[node], prediction[node], confidence[node]);
+		treeNode.setLeft(toDecisionTreeNode(left[node]));
+		treeNode.setRight(toDecisionTreeNode(right[node]));
+		
+		return treeNode;
+	}
+	
+	/**
+	 * Figure out which leaf this example falls into
+	 * 
+	 * @param example
+	 * @return the index of the leaf node
+	 */
+	public int findLeaf(Example example){
+		int current = 0;
+		
+		while( feature[current] != LEAF ){
+			if( example.getFeature(feature[current]) <= threshold[current] ){
+				current = left[current];
+			}else{
+				current = right[current];
+			}
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Figure out which leaf this example falls into
+	 * 
+	 * @param row the feature values of the example, indexed by feature index
+	 * @return the index of the leaf node
+	 */
+	public int findLeaf(double[] row){
+		int current = 0;
+		
+		while( feature[current] != LEAF ){
+			if( row[feature[current]] <= threshold[current] ){
+				current = left[current];
+			}else{
+				current = right[current];
+			}
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Figure out which node this example ends up at if the tree is cut off
+	 * after depthLimit splits.  Only meaningful if the tree was built recording
+	 * the predictions at the internal nodes.
+	 * 
+	 * @param example
+	 * @param depthLimit
+	 * @return the index of the node
+	 */
+	public int findNode(Example example, int depthLimit){
+		int current = 0;
+		
+		for( int depth = 0; depth < depthLimit && feature[current] != LEAF; depth++ ){
+			if( example.getFeature(feature[current]) <= threshold[current] ){
+				current = left[current];
+			}else{
+				current = right[current];
+			}
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * @return the distinct feature indices the tree splits on, in increasing order
+	 */
+	public int[] getUsedFeatures(){
+		return Arrays.stream(feature).filter(f -> f != LEAF).sorted().distinct().toArray();
+	}
+	
+	/**
+	 * @return the largest feature index used by the tree (or -1 if the tree is a single leaf)
+	 */
+	public int getMaxFeatureIndex(){
+		int max = -1;
+		
+		for( int f: feature ){
+			max = Math.max(max, f);
+		}
+		
+		return max;
+	}
+	
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int size(){
+		return feature.length;
+	}
+	
+	/**
+	 * @param node
+	 * @return whether node is a leaf
+	 */
+	public boolean isLeaf(int node){
+		return feature[node] == LEAF;
+	}
+	
+	/**
+	 * @param node
+	 * @return the feature index node splits on
+	 */
+	public int getFeatureIndex(int node){
+		return feature[node];
+	}
+	
+	/**
+	 * @param node
+	 * @return the threshold node splits on
+	 */
+	public double getThreshold(int node){
+		return threshold[node];
+	}
+	
+	/**
+	 * @param node
+	 * @return the index of the left child of node
+	 */
+	public int getLeft(int node){
+		return left[node];
+	}
+	
+	/**
+	 * @param node
+	 * @return the index of the right child of node
+	 */
+	public int getRight(int node){
+		return right[node];
+	}
+	
+	/**
+	 * @param node
+	 * @return the prediction at node
+	 */
+	public double prediction(int node){
+		return prediction[node];
+	}
+	
+	/**
+	 * @param node
+	 * @return the confidence at node
+	 */
+	public double confidence(int node){
+		return confidence[node];
+	}
+}
@@ -0,0 +1,750 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * Gradient boosted decision trees with logistic loss.
+ * 
+ * Each round fits a shallow regression tree to the gradient of the loss of the current
+ * model and adds it (scaled by the learning rate) to the model.  The leaf values are
+ * Newton steps, -G/(H + lambda), where G and H are the sums of the first and second
+ * derivatives of the loss for the examples at the leaf.
+ * 
+ * To find splits quickly the feature values are put into a fixed number of bins up front
+ * and the trees are built from per-bin gradient histograms.  Histograms for the features
+ * are built in parallel and a child's histogram is computed by subtracting its sibling's
+ * from its parent's.  Optionally, each tree only sees a sample of the examples and
+ * features, and training stops early once the loss on a held out part of the training
+ * data stops improving.
+ * 
+ * The trees are stored as FlatDecisionTrees whose leaf predictions are the tree's
+ * contribution to the score.  The model predicts POSITIVE_LABEL if the score is >= 0.
+ * 
+ * @author huey
+ * 
+ */
+public class GradientBoostingClassifier implements Classifier {
+	public static final int MAX_BINS = Short.MAX_VALUE + 1; // bin ids are stored as shorts
+	
+	private int numTrees = 100;
+	private double learningRate = 0.1;
+	private int depthMax = 3;
+	private int maxBins = 64;
+	private double lambda = 1.0; // L2 regularization of the leaf values
+	private double rowSampling = 1.0; // fraction of the examples used for each tree
+	private double featureSampling = 1.0; // fraction of the features used for each tree
+	private double validationFraction = 0.0; // fraction of the data held out for early stopping
+	private int earlyStoppingRounds = 10;
+	private boolean parallel = true;
+	private Random rand = new Random();
+	
+	private double baseScore;
+	private FlatDecisionTree[] trees;
+	private int[] featureIndices;
+	private int rowSize; // the length of the rows the trees classify (largest feature index + 1)
+	
+	public GradientBoostingClassifier(){
+	}
+	
+	/**
+	 * Create an already trained model (e.g. one loaded by TreeModelIO)
+	 * 
+	 * @param trees
+	 * @param baseScore
+	 * @param featureIndices the features the model was trained on, in increasing order
+	 */
+	GradientBoostingClassifier(FlatDecisionTree[] trees, double baseScore, int[] featureIndices){
+		this.trees = trees;
+		this.baseScore = baseScore;
+		this.featureIndices = featureIndices;
+		numTrees = trees.length;
+		rowSize = featureIndices.length == 0 ? 0 : featureIndices[featureIndices.length-1]+1;
+	}
+	
+	@Override
+	public void train(DataSet data) {
+		ArrayList<Example> examples = data.getData();
+		
+		if( examples.size() == 0 ){
+			throw new RuntimeException("Tried to train without any data");
+		}
+		
+		featureIndices = data.getSortedFeatureIndices();
+		rowSize = featureIndices.length == 0 ? 0 : featureIndices[featureIndices.length-1]+1;
+		
+		// hold out some of the data for early stopping
+		ArrayList<Example> train = new ArrayList<Example>(examples);
+		ArrayList<Example> validation = new ArrayList<Example>();
+		
+		if( validationFraction > 0 ){
+			Collections.shuffle(train, rand);
+			int validationSize = (int)(train.size()*validationFraction);
+			
+			for( int i = 0; i < validationSize; i++ ){
+				validation.add(train.remove(train.size()-1));
+			}
+			
+			if( train.isEmpty() ){
+				throw new RuntimeException("Holding out " + validationSize + " of " + examples.size() +
+						" examples for early stopping leaves none to train on");
+			}
+		}
+		
+		int size = train.size();
+		double[] target = new double[size]; // 0/1 version of the labels
+		
+		for( int i = 0; i < size; i++ ){
+			target[i] = train.get(i).getLabel() == BinaryDecisionTreeClassifier.POSITIVE_LABEL ? 1.0 : 0.0;
+		}
+		
+		// start with the log odds of the positive label
+		double positives = Arrays.stream(target).sum();
+		baseScore = Math.log((positives + 1) / (size - positives + 1));
+		
+		HistogramTreeBuilder builder = new HistogramTreeBuilder(train);
+		double[] score = new double[size];
+		double[] gradient = new double[size];
+		double[] hessian = new double[size];
+		Arrays.fill(score, baseScore);
+		
+		double[][] validationRows = toRows(validation);
+		double[] validationScore = new double[validation.size()];
+		Arrays.fill(validationScore, baseScore);
+		double bestLoss = Double.POSITIVE_INFINITY;
+		int bestNumTrees = 0;
+		
+		int[] rowOrder = new int[size];
+		int[] columnOrder = new int[featureIndices.length];
+		
+		for( int i = 0; i < size; i++ ){
+			rowOrder[i] = i;
+		}
+		
+		for( int i = 0; i < columnOrder.length; i++ ){
+			columnOrder[i] = i;
+		}
+		
+		ArrayList<FlatDecisionTree> trained = new ArrayList<FlatDecisionTree>();
+		
+		for( int round = 0; round < numTrees; round++ ){
+			for( int i = 0; i < size; i++ ){
+				double p = sigmoid(score[i]);
+				gradient[i] = p - target[i];
+				hessian[i] = p * (1-p);
+			}
+			
+			int numRows = sample(rowOrder, Math.max(1, (int)Math.round(size*rowSampling)));
+			int numColumns = sample(columnOrder, Math.max(1, (int)Math.round(columnOrder.length*featureSampling)));
+			int[] rows = Arrays.copyOf(rowOrder, numRows);
+			int[] columns = Arrays.copyOf(columnOrder, numColumns);
+			Arrays.sort(columns);
+			
+			FlatDecisionTree tree = new FlatDecisionTree(builder.build(rows, columns, gradient, hessian));
+			trained.add(tree);
+			
+			// every training example is scored, not just the ones in the sample
+			int[] leaves = builder.findLeaves(tree);
+			
+			for( int i = 0; i < size; i++ ){
+				score[i] += tree.prediction(leaves[i]);
+			}
+			
+			if( validation.size() > 0 ){
+				double loss = 0.0;
+				
+				for( int i = 0; i < validationRows.length; i++ ){
+					validationScore[i] += tree.prediction(tree.findLeaf(validationRows[i]));
+					loss += logLoss(validationScore[i], validation.get(i).getLabel());
+				}
+				
+				if( loss < bestLoss ){
+					bestLoss = loss;
+					bestNumTrees = trained.size();
+				}else if( trained.size() - bestNumTrees >= earlyStoppingRounds ){
+					break;
+				}
+			}else{
+				bestNumTrees = trained.size();
+			}
+		}
+		
+		trees = trained.subList(0, bestNumTrees).toArray(new FlatDecisionTree[0]);
+	}
+	
+	/**
+	 * Randomly move count of the entries in order to the front
+	 * 
+	 * @return count (or the length of order if it's smaller)
+	 */
+	private int sample(int[] order, int count){
+		if( count >= order.length ){
+			return order.length;
+		}
+		
+		for( int i = 0; i < count; i++ ){
+			int j = i + rand.nextInt(order.length - i);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		
+		return count;
+	}
+	
+	private static double sigmoid(double score){
+		return 1.0 / (1.0 + Math.exp(-score));
+	}
+	
+	/**
+	 * @param score
+	 * @param label
+	 * @return the logistic loss for an example with label that got score
+	 */
+	private static double logLoss(double score, double label){
+		double margin = label == BinaryDecisionTreeClassifier.POSITIVE_LABEL ? score : -score;
+		return margin > 0 ? Math.log1p(Math.exp(-margin)) : -margin + Math.log1p(Math.exp(margin));
+	}
+	
+	/**
+	 * Set the (maximum) number of trees (default 100)
+	 * 
+	 * @param numTrees
+	 */
+	public void setNumTrees(int numTrees){
+		this.numTrees = numTrees;
+	}
+	
+	/**
+	 * Set the amount each tree is scaled by (default 0.1)
+	 * 
+	 * @param learningRate
+	 */
+	public void setLearningRate(double learningRate){
+		this.learningRate = learningRate;
+	}
+	
+	/**
+	 * Set the maximum depth of each tree (default 3)
+	 * 
+	 * @param depthMax
+	 */
+	public void setDepthLimit(int depthMax){
+		this.depthMax = depthMax;
+	}
+	
+	/**
+	 * Set the maximum number of bins the values of each feature are put in (default 64).
+	 * Bins are stored as shorts, so this can be at most MAX_BINS.
+	 * 
+	 * @param maxBins
+	 */
+	public void setMaxBins(int maxBins){
+		if( maxBins < 2 || maxBins > MAX_BINS ){
+			throw new RuntimeException("Max bins must be between 2 and " + MAX_BINS + ": " + maxBins);
+		}
+		
+		this.maxBins = maxBins;
+	}
+	
+	/**
+	 * Set the L2 regularization of the leaf values (default 1.0)
+	 * 
+	 * @param lambda
+	 */
+	public void setLambda(double lambda){
+		this.lambda = lambda;
+	}
+	
+	/**
+	 * Set the fraction of the examples (sampled without replacement) used to build
+	 * each tree (default 1.0, i.e. all of them)
+	 * 
+	 * @param rowSampling
+	 */
+	public void setRowSampling(double rowSampling){
+		this.rowSampling = rowSampling;
+	}
+	
+	/**
+	 * Set the fraction of the features each tree can split on (default 1.0, i.e. all of them)
+	 * 
+	 * @param featureSampling
+	 */
+	public void setFeatureSampling(double featureSampling){
+		this.featureSampling = featureSampling;
+	}
+	
+	/**
+	 * Set the fraction of the training data to hold out to decide when to stop adding
+	 * trees.  Training stops once the loss on the held out data hasn't improved for
+	 * earlyStoppingRounds trees and the model keeps the trees up to the best loss.
+	 * The default, 0.0, turns early stopping off.
+	 * 
+	 * @param validationFraction in [0, 1)
+	 * @param earlyStoppingRounds
+	 */
+	public void setEarlyStopping(double validationFraction, int earlyStoppingRounds){
+		if( !(validationFraction >= 0 && validationFraction < 1) ){
+			throw new RuntimeException("Validation fraction must be in [0, 1): " + validationFraction);
+		}
+		
+		this.validationFraction = validationFraction;
+		this.earlyStoppingRounds = earlyStoppingRounds;
+	}
+	
+	/**
+	 * Set whether histograms and batch predictions should be computed in parallel (default true)
+	 * 
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel){
+		this.parallel = parallel;
+	}
+	
+	/**
+	 * Set the seed for the samples of the data and features
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed){
+		rand = new Random(seed);
+	}
+	
+	/**
+	 * Get the trained trees.  Should only be called *after* train.
+	 * 
+	 * @return the trees
+	 */
+	public FlatDecisionTree[] getTrees(){
+		return trees;
+	}
+	
+	/**
+	 * @return the score before any trees are added
+	 */
+	public double getBaseScore(){
+		return baseScore;
+	}
+	
+	/**
+	 * @return the features the model was trained on, in increasing order
+	 */
+	int[] getFeatureIndices(){
+		return featureIndices;
+	}
+	
+	@Override
+	public double classify(Example example) {
+		return getScore(toRow(example)) >= 0 ? BinaryDecisionTreeClassifier.POSITIVE_LABEL : BinaryDecisionTreeClassifier.NEGATIVE_LABEL;
+	}
+	
+	/**
+	 * The confidence is the probability the model gives the predicted label
+	 */
+	@Override
+	public double confidence(Example example) {
+		return sigmoid(Math.abs(getScore(toRow(example))));
+	}
+	
+	/**
+	 * Classify a batch of examples.  The trees are applied one at a time to all of
+	 * the examples (in parallel chunks), which keeps each tree in cache.
+	 * 
+	 * @param examples
+	 * @return the predicted labels
+	 */
+	public double[] classify(List<Example> examples){
+		double[] scores = getScores(examples);
+		double[] labels = new double[scores.length];
+		
+		for( int i = 0; i < scores.length; i++ ){
+			labels[i] = scores[i] >= 0 ? BinaryDecisionTreeClassifier.POSITIVE_LABEL : BinaryDecisionTreeClassifier.NEGATIVE_LABEL;
+		}
+		
+		return labels;
+	}
+	
+	/**
+	 * Get the scores (log odds of the positive label) for a batch of examples
+	 * 
+	 * @param examples
+	 * @return the scores
+	 */
+	public double[] getScores(List<Example> examples){
+		double[][] rows = toRows(examples);
+		double[] scores = new double[rows.length];
+		int chunkSize = 1024;
+		IntStream chunks = IntStream.range(0, (rows.length + chunkSize - 1) / chunkSize);
+		
+		if( parallel ){
+			chunks = chunks.parallel();
+		}
+		
+		chunks.forEach(chunk -> {
+			int begin = chunk * chunkSize;
+			int end = Math.min(begin + chunkSize, rows.length);
+			Arrays.fill(scores, begin, end, baseScore);
+			
+			for( FlatDecisionTree tree: trees ){
+				for( int i = begin; i < end; i++ ){
+					scores[i] += tree.prediction(tree.findLeaf(rows[i]));
+				}
+			}
+		});
+		
+		return scores;
+	}
+	
+	/**
+	 * @param row
+	 * @return the score (log odds of the positive label) for the row
+	 */
+	private double getScore(double[] row){
+		double score = baseScore;
+		
+		for( FlatDecisionTree tree: trees ){
+			score += tree.prediction(tree.findLeaf(row));
+		}
+		
+		return score;
+	}
+	
+	/**
+	 * @param example
+	 * @return the example as a row indexed by feature index
+	 */
+	private double[] toRow(Example example){
+		double[] row = new double[rowSize];
+		
+		for( int featureIndex: featureIndices ){
+			row[featureIndex] = example.getFeature(featureIndex);
+		}
+		
+		return row;
+	}
+	
+	private double[][] toRows(List<Example> examples){
+		double[][] rows = new double[examples.size()][];
+		
+		for( int i = 0; i < rows.length; i++ ){
+			rows[i] = toRow(examples.get(i));
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Builds regression trees on the gradients from the binned training data
+	 */
+	private class HistogramTreeBuilder{
+		private int size;
+		private double[][] edges; // edges[column][bin] is the largest value in bin
+		private int[] numBins;
+		private short[][] binned; // binned[column][row] is the bin of row's value
+		
+		// for the tree being built
+		private int[] columns;
+		private double[] gradient;
+		private double[] hessian;
+		
+		public HistogramTreeBuilder(ArrayList<Example> data){
+			size = data.size();
+			edges = new double[featureIndices.length][];
+			numBins = new int[featureIndices.length];
+			binned = new short[featureIndices.length][size];
+			
+			IntStream range = IntStream.range(0, featureIndices.length);
+			
+			if( parallel ){
+				range = range.parallel();
+			}
+			
+			range.forEach(column -> {
+				double[] values = new double[size];
+				
+				for( int i = 0; i < size; i++ ){
+					values[i] = data.get(i).getFeature(featureIndices[column]);
+				}
+				
+				edges[column] = findEdges(values.clone());
+				numBins[column] = edges[column].length + 1;
+				
+				for( int i = 0; i < size; i++ ){
+					binned[column][i] = (short)bin(edges[column], values[i]);
+				}
+			});
+		}
+		
+		/**
+		 * Pick the bin edges so that each bin has about the same number of examples
+		 * 
+		 * @param values
+		 * @return the edges, where bin i holds values <= edges[i] (and greater than edges[i-1])
+		 */
+		private double[] findEdges(double[] values){
+			Arrays.sort(values);
+			double[] edges = new double[maxBins-1];
+			int numEdges = 0;
+			
+			for( int bin = 1; bin < maxBins; bin++ ){
+				double edge = values[(int)((long)bin * (values.length-1) / maxBins)];
+				
+				if( numEdges == 0 || edge > edges[numEdges-1] ){
+					edges[numEdges++] = edge;
+				}
+			}
+			
+			// nothing goes above the largest value, so it doesn't need a bin
+			if( numEdges > 0 && edges[numEdges-1] == values[values.length-1] ){
+				numEdges--;
+			}
+			
+			return Arrays.copyOf(edges, numEdges);
+		}
+		
+		private int bin(double[] edges, double value){
+			int index = Arrays.binarySearch(edges, value);
+			return index >= 0 ? index : -index-1;
+		}
+		
+		/**
+		 * Build a tree over rows using the given columns
+		 * 
+		 * @param rows the training rows to use (reordered as the tree is built)
+		 * @param columns the columns that can be split on
+		 * @param gradient
+		 * @param hessian
+		 * @return the tree
+		 */
+		public DecisionTreeNode build(int[] rows, int[] columns, double[] gradient, double[] hessian){
+			this.columns = columns;
+			this.gradient = gradient;
+			this.hessian = hessian;
+			
+			return buildNode(rows, 0, rows.length, buildHistogram(rows, 0, rows.length), depthMax);
+		}
+		
+		/**
+		 * @param rows
+		 * @param begin
+		 * @param end
+		 * @param histogram the histogram for rows begin to end
+		 * @param depthLimit
+		 * @return the subtree for rows begin to end
+		 */
+		private DecisionTreeNode buildNode(int[] rows, int begin, int end, Histogram histogram, int depthLimit){
+			double totalGradient = histogram.totalGradient();
+			double totalHessian = histogram.totalHessian();
+			
+			if( depthLimit == 0 || end - begin < 2 ){
+				return leaf(totalGradient, totalHessian);
+			}
+			
+			// find the best split for each column in parallel, then the best overall
+			double[][] splits = new double[columns.length][];
+			IntStream range = IntStream.range(0, columns.length);
+			
+			if( parallel ){
+				range = range.parallel();
+			}
+			
+			range.forEach(i -> splits[i] = histogram.bestSplit(i, totalGradient, totalHessian));
+			
+			int bestColumn = -1;
+			double bestGain = 0.0;
+			int bestBin = 0;
+			
+			for( int i = 0; i < columns.length; i++ ){
+				if( splits[i][0] > bestGain ){
+					bestGain = splits[i][0];
+					bestColumn = i;
+					bestBin = (int)splits[i][1];
+				}
+			}
+			
+			if( bestColumn == -1 ){
+				return leaf(totalGradient, totalHessian);
+			}
+			
+			// partition the rows, left rows first
+			short[] columnBins = binned[columns[bestColumn]];
+			int mid = begin;
+			
+			for( int i = begin; i < end; i++ ){
+				if( columnBins[rows[i]] <= bestBin ){
+					int temp = rows[mid];
+					rows[mid] = rows[i];
+					rows[i] = temp;
+					mid++;
+				}
+			}
+			
+			// build the histogram for the smaller child and get the other by subtraction
+			Histogram leftHistogram, rightHistogram;
+			
+			if( mid - begin < end - mid ){
+				leftHistogram = buildHistogram(rows, begin, mid);
+				rightHistogram = histogram.subtract(leftHistogram);
+			}else{
+				rightHistogram = buildHistogram(rows, mid, end);
+				leftHistogram = histogram.subtract(rightHistogram);
+			}
+			
+			DecisionTreeNode node = new DecisionTreeNode(featureIndices[columns[bestColumn]], edges[columns[bestColumn]][bestBin]);
+			node.setLeft(buildNode(rows, begin, mid, leftHistogram, depthLimit-1));
+			node.setRight(buildNode(rows, mid, end, rightHistogram, depthLimit-1));
+			
+			return node;
+		}
+		
+		private DecisionTreeNode leaf(double totalGradient, double totalHessian){
+			return new DecisionTreeNode(-learningRate * totalGradient / (totalHessian + lambda), 0.0);
+		}
+		
+		private Histogram buildHistogram(int[] rows, int begin, int end){
+			Histogram histogram = new Histogram();
+			IntStream range = IntStream.range(0, columns.length);
+			
+			if( parallel && end - begin > 1000 ){
+				range = range.parallel();
+			}
+			
+			range.forEach(i -> {
+				short[] columnBins = binned[columns[i]];
+				double[] g = new double[numBins[columns[i]]];
+				double[] h = new double[numBins[columns[i]]];
+				int[] count = new int[numBins[columns[i]]];
+				
+				for( int j = begin; j < end; j++ ){
+					int row = rows[j];
+					int bin = columnBins[row];
+					g[bin] += gradient[row];
+					h[bin] += hessian[row];
+					count[bin]++;
+				}
+				
+				histogram.gradient[i] = g;
+				histogram.hessian[i] = h;
+				histogram.count[i] = count;
+			});
+			
+			return histogram;
+		}
+		
+		/**
+		 * @param tree a tree built by this builder
+		 * @return the leaf each training row falls in
+		 */
+		public int[] findLeaves(FlatDecisionTree tree){
+			// the thresholds are bin edges, so we can follow the tree using the bins
+			int[] leaves = new int[size];
+			int[] column = new int[tree.size()];
+			int[] bin = new int[tree.size()];
+			
+			for( int node = 0; node < tree.size(); node++ ){
+				if( !tree.isLeaf(node) ){
+					column[node] = Arrays.binarySearch(featureIndices, tree.getFeatureIndex(node));
+					bin[node] = bin(edges[column[node]], tree.getThreshold(node));
+				}
+			}
+			
+			for( int row = 0; row < size; row++ ){
+				int current = 0;
+				
+				while( !tree.isLeaf(current) ){
+					current = binned[column[current]][row] <= bin[current] ? tree.getLeft(current) : tree.getRight(current);
+				}
+				
+				leaves[row] = current;
+			}
+			
+			return leaves;
+		}
+		
+		/**
+		 * The sums of the gradients and hessians (and the number of rows) in each bin
+		 * for each of the columns being used
+		 */
+		private class Histogram{
+			private double[][] gradient = new double[columns.length][];
+			private double[][] hessian = new double[columns.length][];
+			private int[][] count = new int[columns.length][];
+			
+			public double totalGradient(){
+				return columns.length == 0 ? 0.0 : Arrays.stream(gradient[0]).sum();
+			}
+			
+			public double totalHessian(){
+				return columns.length == 0 ? 0.0 : Arrays.stream(hessian[0]).sum();
+			}
+			
+			/**
+			 * @param i
+			 * @param totalGradient
+			 * @param totalHessian
+			 * @return the gain and bin of the best split on column i (gain 0 if there's no split)
+			 */
+			public double[] bestSplit(int i, double totalGradient, double totalHessian){
+				double parentScore = totalGradient * totalGradient / (totalHessian + lambda);
+				int totalCount = Arrays.stream(count[i]).sum();
+				double leftGradient = 0.0, leftHessian = 0.0;
+				int leftCount = 0;
+				double bestGain = 0.0;
+				int bestBin = 0;
+				
+				for( int bin = 0; bin < gradient[i].length - 1; bin++ ){
+					leftGradient += gradient[i][bin];
+					leftHessian += hessian[i][bin];
+					leftCount += count[i][bin];
+					
+					if( leftCount == 0 || leftCount == totalCount ){
+						continue;
+					}
+					
+					double rightGradient = totalGradient - leftGradient;
+					double rightHessian = totalHessian - leftHessian;
+					double gain = leftGradient * leftGradient / (leftHessian + lambda)
+							+ rightGradient * rightGradient / (rightHessian + lambda) - parentScore;
+					
+					if( gain > bestGain ){
+						bestGain = gain;
+						bestBin = bin;
+					}
+				}
+				
+				return new double[] {bestGain, bestBin};
+			}
+			
+			/**
+			 * @param other the histogram of a subset of this histogram's rows
+			 * @return the histogram for the rest of the rows
+			 */
+			public Histogram subtract(Histogram other){
+				Histogram result = new Histogram();
+				
+				for( int i = 0; i < columns.length; i++ ){
+					int bins = gradient[i].length;
+					result.gradient[i] = new double[bins];
+					result.hessian[i] = new double[bins];
+					result.count[i] = new int[bins];
+					
+					for( int bin = 0; bin < bins; bin++ ){
+						result.gradient[i][bin] = gradient[i][bin] - other.gradient[i][bin];
+						result.hessian[i][bin] = hessian[i][bin] - other.hessian[i][bin];
+						result.count[i][bin] = count[i][bin] - other.count[i][bin];
+					}
+				}
+				
+				return result;
+			}
+		}
+	}
+}
@@ -1,102 +1,1010 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
 
+import ml.data.CompactExample;
 import ml.data.DataSet;
 import ml.data.Example;
-
-// TODO: FIX ME SO THAT I'M NOT JUST THE PERCEPTRON!
+import ml.data.FeatureIndexer;
+import ml.data.ShuffleBuffer;
 
 /**
- * Gradient descent classifier allowing for two different loss functions and
+ * Gradient descent classifier allowing for three different loss functions and
  * three different regularization settings.
  * 
+ * Training is stochastic gradient descent: for each example (in a random order each
+ * iteration), with margin m = y(w.x + b):
+ * 
+ *   w_j = w_j + eta*(y*x_j*c - lambda*r(w_j))
+ *   b = b + eta*y*c
+ * 
+ * where c = exp(-m) for exponential loss, 1 if m < 1 (0 otherwise) for hinge loss or
+ * 1/(1 + exp(m)) for logistic loss and r is the regularizer's derivative: sign(w_j) for L1 or w_j for L2.  L1 updates
+ * are truncated at 0 so that weights can become exactly 0 rather than oscillating
+ * around it.  The intersect b isn't regularized.
+ * 
+ * The regularization changes every weight on every step, but the loss only changes the
+ * weights of the example's non-zero features.  So the regularization is applied lazily:
+ * each weight remembers the last step it was brought up to date and when it's next used
+ * all of the steps it missed are applied at once.  A step then only costs as much as
+ * the number of non-zero features in the example.
+ * 
+ * Training can be split across several threads (see setNumThreads).  Each iteration
+ * the shuffled data is split into one disjoint partition per thread and the threads
+ * update the shared weights without any locking (Hogwild).  The steps are numbered as
+ * if the threads took turns, so the lazy regularization stays (approximately) right.
+ * Alternatively, in deterministic mode each thread runs on its own copy of the weights
+ * and the copies are averaged at the end of the iteration, so the result only depends
+ * on the seed.
+ * 
+ * For dense data, where threads sharing the weights would constantly collide, training
+ * can instead use mini-batches (see setBatchSize).  The gradient of each batch is computed
+ * in parallel over fixed size chunks of the batch and the chunks' gradients are added
+ * together pairwise (fork/join), so the sum doesn't depend on the number of threads or
+ * how they were scheduled.  Each batch then takes one step with the average gradient,
+ * including one step of regularization for every weight.
+ * 
+ * Finally, the weights can be fit with a full batch quasi-Newton method instead (see
+ * setOptimizer): L-BFGS, or OWL-QN for L1 regularization.  It minimizes the average loss
+ * over the data plus lambda/2*|w|^2 for L2 or lambda*|w|_1 for L1, which is the objective
+ * the stochastic updates above follow.  Since the hinge loss isn't differentiable at 1,
+ * L-BFGS uses the squared hinge loss max(0, 1-m)^2 instead.  Each iteration evaluates the
+ * loss and its gradient with a parallel pass over the data (split up like the
+ * mini-batches) and stops when the objective improves by less than the tolerance or
+ * after a maximum number of iterations.
+ * 
+ * SGD can stop early (see setEarlyStopping) once the average loss, either on the training
+ * data or on a held out part of it, hasn't improved for a number of iterations.  The
+ * weights are then set back to the ones with the best loss.
+ * 
  * @author dkauchak
- *
+ * 
  */
 public class GradientDescentClassifier implements Classifier {
 	// constants for the different surrogate loss functions
 	public static final int EXPONENTIAL_LOSS = 0;
 	public static final int HINGE_LOSS = 1;
+	public static final int LOGISTIC_LOSS = 2;
 	
 	// constants for the different regularization parameters
 	public static final int NO_REGULARIZATION = 0;
 	public static final int L1_REGULARIZATION = 1;
 	public static final int L2_REGULARIZATION = 2;
 	
-	protected HashMap<Integer, Double> weights; // the feature weights
+	// constants for the different optimizers
+	public static final int SGD = 0;
+	public static final int LBFGS = 1;
+	
+	// the number of examples in a mini-batch whose gradient is computed by a single task
+	private static final int CHUNK_SIZE = 64;
+	
+	// for the L-BFGS line search
+	private static final int MAX_LINE_SEARCH = 40; // the most times to halve the step
+	private static final double SUFFICIENT_DECREASE = 1e-4; // fraction of the predicted decrease a step must achieve
+	
+	protected FeatureIndexer indexer; // maps feature indices to positions in weights
+	protected double[] weights; // the feature weights, indexed by dense feature index
 	protected double b = 0; // the intersect weight
 	
 	protected int iterations = 10;
+	protected int loss = EXPONENTIAL_LOSS;
+	protected int regularization = NO_REGULARIZATION;
+	protected double lambda = 0.01;
+	protected double eta = 0.01;
+	protected int numThreads = 1;
+	protected int batchSize = 1;
+	protected int optimizer = SGD;
+	protected int maxIterations = 100;
+	protected double tolerance = 1e-6;
+	protected int memory = 10;
+	protected int shuffleBufferSize = 10000;
+	protected int patience = 0; // iterations without improvement before stopping (0 for no early stopping)
+	protected double validationFraction = 0.0;
+	protected int iterationsRun = 0;
+	protected boolean deterministic = false;
+	protected Random rand = new Random();
+	
+	/**
+	 * Initialize the weights (all 0) and the intersect value for the features
+	 * in data
+	 * 
+	 * @param data
+	 */
+	protected void initializeWeights(DataSet data){
+		indexer = new FeatureIndexer(data);
+		weights = new double[indexer.size()];
+		b = 0;
+	}
+	
+	/**
+	 * Set the number of iterations (passes over the data) during training
+	 * 
+	 * @param iterations
+	 */
+	public void setIterations(int iterations){
+		this.iterations = iterations;
+	}
+	
+	/**
+	 * Set the loss function to use (EXPONENTIAL_LOSS, HINGE_LOSS or LOGISTIC_LOSS)
+	 * 
+	 * @param loss
+	 */
+	public void setLoss(int loss){
+		if( loss != EXPONENTIAL_LOSS && loss != HINGE_LOSS && loss != LOGISTIC_LOSS ){
+			throw new RuntimeException("Unknown loss: " + loss);
+		}
+		
+		this.loss = loss;
+	}
+	
+	/**
+	 * Set the regularization to use (NO_REGULARIZATION, L1_REGULARIZATION or L2_REGULARIZATION)
+	 * 
+	 * @param regularization
+	 */
+	public void setRegularization(int regularization){
+		if( regularization != NO_REGULARIZATION && regularization != L1_REGULARIZATION &&
+			regularization != L2_REGULARIZATION ){
+			throw new RuntimeException("Unknown regularization: " + regularization);
+		}
 		
+		this.regularization = regularization;
+	}
+	
 	/**
-	 * Get a weight vector over the set of features with each weight
-	 * set to 0
+	 * Set the weight of the regularization (default 0.01)
 	 * 
-	 * @param features the set of features to learn over
-	 * @return
+	 * @param lambda
+	 */
+	public void setLambda(double lambda){
+		this.lambda = lambda;
+	}
+	
+	/**
+	 * Set the learning rate (default 0.01)
+	 * 
+	 * @param eta
+	 */
+	public void setEta(double eta){
+		this.eta = eta;
+	}
+	
+	/**
+	 * Set the number of threads to train with (default 1).  With mini-batches, this
+	 * is the number of threads computing each batch's gradient.
+	 * 
+	 * @param numThreads
+	 */
+	public void setNumThreads(int numThreads){
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Set whether training with multiple threads should be deterministic (default false).
+	 * If true, each thread updates its own copy of the weights and the copies are averaged
+	 * at the end of each iteration rather than the threads racing on the shared weights.
+	 * 
+	 * @param deterministic
+	 */
+	public void setDeterministic(boolean deterministic){
+		this.deterministic = deterministic;
+	}
+	
+	/**
+	 * Set the seed used to shuffle the data each iteration
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed){
+		rand = new Random(seed);
+	}
+	
+	/**
+	 * Set the number of examples in each mini-batch (default 1, i.e. stochastic gradient
+	 * descent).  Larger batches take one step per batch with the batch's average gradient.
+	 * 
+	 * @param batchSize
 	 */
-	protected HashMap<Integer, Double> getZeroWeights(Set<Integer> features){
-		HashMap<Integer, Double> temp = new HashMap<Integer, Double>();
+	public void setBatchSize(int batchSize){
+		if( batchSize < 1 ){
+			throw new RuntimeException("Batch size must be at least 1: " + batchSize);
+		}
 		
-		for( Integer f: features){
-			temp.put(f, 0.0);
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Set how the weights are fit: SGD (the default; stochastic or mini-batch gradient
+	 * descent) or LBFGS.  The learning rate, iterations and batch size only apply to SGD.
+	 * 
+	 * @param optimizer
+	 */
+	public void setOptimizer(int optimizer){
+		if( optimizer != SGD && optimizer != LBFGS ){
+			throw new RuntimeException("Unknown optimizer: " + optimizer);
 		}
 		
-		return temp;
+		this.optimizer = optimizer;
 	}
 	
 	/**
-	 * Initialize the weights and the intersect value
+	 * Set the maximum number of L-BFGS iterations (default 100)
 	 * 
-	 * @param features
+	 * @param maxIterations
 	 */
-	protected void initializeWeights(Set<Integer> features){
-		weights = getZeroWeights(features);
-		b = 0;
+	public void setMaxIterations(int maxIterations){
+		this.maxIterations = maxIterations;
 	}
 	
 	/**
-	 * Set the number of iterations the perceptron should run during training
+	 * Set the L-BFGS convergence tolerance (default 1e-6): training stops once an iteration
+	 * improves the objective by less than this fraction of it.  For early stopping, this is
+	 * how much an iteration has to improve the loss by to count as an improvement.
 	 * 
-	 * @param iterations
+	 * @param tolerance
 	 */
-	public void setIterations(int iterations){
-		this.iterations = iterations;
+	public void setTolerance(double tolerance){
+		this.tolerance = tolerance;
+	}
+	
+	/**
+	 * Set the number of previous steps L-BFGS uses to approximate the curvature (default 10)
+	 * 
+	 * @param memory
+	 */
+	public void setMemory(int memory){
+		this.memory = memory;
+	}
+	
+	/**
+	 * Set the number of examples held in memory to shuffle the data when training
+	 * from a stream (default 10000)
+	 * 
+	 * @param shuffleBufferSize
+	 */
+	public void setShuffleBufferSize(int shuffleBufferSize){
+		this.shuffleBufferSize = shuffleBufferSize;
+	}
+	
+	/**
+	 * Stop SGD early once the average loss on the training data hasn't improved for
+	 * patience iterations, and keep the weights from the iteration with the lowest loss.
+	 * The default, 0, turns early stopping off.
+	 * 
+	 * @param patience
+	 */
+	public void setEarlyStopping(int patience){
+		setEarlyStopping(0.0, patience);
+	}
+	
+	/**
+	 * Hold out validationFraction of the training data and stop SGD early once the
+	 * average loss on it hasn't improved for patience iterations, keeping the weights
+	 * from the iteration with the lowest loss.  A patience of 0 turns early stopping off.
+	 * 
+	 * @param validationFraction
+	 * @param patience
+	 */
+	public void setEarlyStopping(double validationFraction, int patience){
+		this.validationFraction = validationFraction;
+		this.patience = patience;
+	}
+	
+	/**
+	 * @return the number of iterations the last call to train(DataSet) actually ran, which
+	 * is less than the number of iterations if it stopped early (for L-BFGS, 0)
+	 */
+	public int getIterationsRun(){
+		return iterationsRun;
 	}
 	
 	public void train(DataSet data) {
-		initializeWeights(data.getAllFeatureIndices());
+		initializeWeights(data);
 		
-		ArrayList<Example> training = (ArrayList<Example>)data.getData().clone();
+		CompactExample[] training = indexer.compact(data.getData()).toArray(new CompactExample[0]);
+		iterationsRun = 0;
 		
-		for( int it = 0; it < iterations; it++ ){
-			Collections.shuffle(training);
+		if( optimizer == LBFGS ){
+			ForkJoinPool pool = new ForkJoinPool(numThreads);
+			
+			try{
+				trainLBFGS(training, pool);
+			}finally{
+				pool.shutdown();
+			}
 			
-			for( Example e: training ){
-				if( getPrediction(e) != e.getLabel() ){
-					double label = e.getLabel();
+			return;
+		}
+		
+		// the data early stopping is scored on, possibly held out from training
+		CompactExample[] validation = training;
+		
+		if( patience > 0 && validationFraction > 0 ){
+			Collections.shuffle(Arrays.asList(training), rand);
+			int validationSize = (int)(training.length*validationFraction);
+			
+			if( validationSize > 0 ){
+				validation = Arrays.copyOfRange(training, training.length-validationSize, training.length);
+				training = Arrays.copyOf(training, training.length-validationSize);
+			}
+		}
+		
+		List<CompactExample> shuffled = Arrays.asList(training);
+		EarlyStopping stopping = patience > 0 ? new EarlyStopping(patience, tolerance) : null;
+		double[] bestWeights = null;
+		double bestB = 0;
+		
+		long step = 0; // the number of steps taken so far (examples times iterations, so a long)
+		long[] lastStep = new long[weights.length]; // the step each weight is up to date with
+		ForkJoinPool pool = batchSize > 1 ? new ForkJoinPool(numThreads) : null;
+		
+		try{
+			for( iterationsRun = 0; iterationsRun < iterations; ){
+				Collections.shuffle(shuffled, rand);
+				
+				if( batchSize > 1 ){
+					trainMiniBatches(training, pool);
+				}else if( numThreads > 1 ){
+					trainParallel(training, lastStep, step);
+					step += training.length;
+				}else{
+					Learner learner = new Learner(weights, lastStep, b, step, 1);
 					
-					// update the weights
-					//for( Integer featureIndex: weights.keySet() ){
-					for( Integer featureIndex: e.getFeatureSet() ){
-						double oldWeight = weights.get(featureIndex);
-						double featureValue = e.getFeature(featureIndex);
-						
-						weights.put(featureIndex, oldWeight + featureValue*label);
+					for( CompactExample e: training ){
+						learner.update(e);
 					}
 					
-					// update b
-					b += label;					
+					b = learner.bias;
+					step = learner.step;
 				}
+				
+				iterationsRun++;
+				
+				if( stopping != null ){
+					// bring the weights up to date to score them (mini-batches are never behind)
+					new Learner(weights, lastStep, b, step, 1).catchUpAll();
+					
+					if( stopping.update(averageLoss(validation)) ){
+						bestWeights = weights.clone();
+						bestB = b;
+					}
+					
+					if( stopping.shouldStop() ){
+						break;
+					}
+				}
+			}
+		}finally{
+			if( pool != null ){
+				pool.shutdown();
 			}
 		}
+		
+		// bring all of the weights up to date
+		new Learner(weights, lastStep, b, step, 1).catchUpAll();
+		
+		if( bestWeights != null ){
+			weights = bestWeights;
+			b = bestB;
+		}
 	}
-
+	
+	/**
+	 * @param examples
+	 * @return the average loss of the current weights on examples
+	 */
+	private double averageLoss(CompactExample[] examples){
+		double sum = 0;
+		
+		for( CompactExample e: examples ){
+			sum += lossValue(e.getLabel() * (e.dot(weights) + b));
+		}
+		
+		return sum/examples.length;
+	}
+	
+	/**
+	 * Train on the examples from source without keeping them all in memory.  Each
+	 * iteration iterates over source again (so it should re-read the data each time
+	 * it's iterated over), compacts the examples, adding features as they're seen, and
+	 * shuffles them with a ShuffleBuffer of shuffleBufferSize examples.  Only single
+	 * threaded, stochastic (batch size 1) gradient descent without early stopping is
+	 * supported, so this throws an exception if any other settings have been made.
+	 * 
+	 * @param source
+	 */
+	public void train(Iterable<Example> source){
+		if( optimizer == LBFGS ){
+			throw new RuntimeException("L-BFGS needs all of the data at once, so can't train from a stream");
+		}else if( batchSize > 1 ){
+			throw new RuntimeException("Mini-batches aren't supported when training from a stream (batch size " + batchSize + ")");
+		}else if( numThreads > 1 ){
+			throw new RuntimeException("Multiple threads aren't supported when training from a stream (" + numThreads + " threads)");
+		}else if( patience > 0 ){
+			throw new RuntimeException("Early stopping isn't supported when training from a stream");
+		}
+		
+		indexer = new FeatureIndexer();
+		weights = new double[0];
+		b = 0;
+		
+		long step = 0;
+		long[] lastStep = new long[0];
+		
+		for( iterationsRun = 0; iterationsRun < iterations; iterationsRun++ ){
+			Iterator<CompactExample> examples = new ShuffleBuffer<CompactExample>(indexer.addAndCompact(source.iterator()), shuffleBufferSize, rand);
+			Learner learner = new Learner(weights, lastStep, b, step, 1);
+			
+			while( examples.hasNext() ){
+				CompactExample e = examples.next();
+				
+				if( indexer.size() > weights.length ){
+					// grow by doubling so that adding features is amortized constant time.  The new
+					// weights are 0, which regularization doesn't change, so they're up to date.
+					weights = Arrays.copyOf(weights, Math.max(indexer.size(), 2*weights.length));
+					lastStep = Arrays.copyOf(lastStep, weights.length);
+					learner = new Learner(weights, lastStep, learner.bias, learner.step, 1);
+				}
+				
+				learner.update(e);
+			}
+			
+			b = learner.bias;
+			step = learner.step;
+		}
+		
+		weights = Arrays.copyOf(weights, indexer.size());
+		new Learner(weights, Arrays.copyOf(lastStep, weights.length), b, step, 1).catchUpAll();
+	}
+	
+	/**
+	 * One iteration over training split into a partition per thread
+	 * 
+	 * @param training the (shuffled) training examples
+	 * @param lastStep the step each weight is up to date with
+	 * @param step the number of steps taken before this iteration
+	 */
+	private void trainParallel(CompactExample[] training, long[] lastStep, long step){
+		int n = training.length;
+		Learner[] learners = new Learner[numThreads];
+		
+		for( int t = 0; t < numThreads; t++ ){
+			if( deterministic ){
+				learners[t] = new Learner(weights.clone(), new long[weights.length], b, 0, 1);
+			}else{
+				// thread t takes steps step+t, step+t+numThreads, ...
+				learners[t] = new Learner(weights, lastStep, b, step + t, numThreads);
+			}
+		}
+		
+		IntStream.range(0, numThreads).parallel().forEach(t -> {
+			for( int i = (int)((long)n*t/numThreads); i < (int)((long)n*(t+1)/numThreads); i++ ){
+				learners[t].update(training[i]);
+			}
+			
+			if( deterministic ){
+				learners[t].catchUpAll();
+			}
+		});
+		
+		// merge in thread order so that deterministic runs add up the same way every time
+		if( deterministic ){
+			for( int j = 0; j < weights.length; j++ ){
+				double sum = 0;
+				
+				for( Learner learner: learners ){
+					sum += learner.w[j];
+				}
+				
+				weights[j] = sum/numThreads;
+			}
+			
+			// the copies were all brought up to date
+			Arrays.fill(lastStep, step + n);
+			
+			double sum = 0;
+			
+			for( Learner learner: learners ){
+				sum += learner.bias;
+			}
+			
+			b = sum/numThreads;
+		}else{
+			// the learners shared the weights, but each kept its own changes to the intersect
+			double start = b;
+			
+			for( Learner learner: learners ){
+				b += learner.bias - start;
+			}
+		}
+	}
+	
+	/**
+	 * One iteration over training in mini-batches
+	 * 
+	 * @param training the (shuffled) training examples
+	 * @param pool the threads to compute the batch gradients with
+	 */
+	private void trainMiniBatches(CompactExample[] training, ForkJoinPool pool){
+		for( int start = 0; start < training.length; start += batchSize ){
+			int end = Math.min(start + batchSize, training.length);
+			double[] gradient = pool.invoke(new BatchGradient(training, start, end, weights, b, false));
+			double size = end - start;
+			
+			for( int j = 0; j < weights.length; j++ ){
+				weights[j] = regularize(weights[j] + eta*gradient[j]/size, 1);
+			}
+			
+			b += eta*gradient[weights.length]/size;
+		}
+	}
+	
+	/**
+	 * Minimize the objective with L-BFGS (OWL-QN for L1 regularization) over the weights
+	 * and the intersect together
+	 * 
+	 * @param training
+	 * @param pool the threads to evaluate the objective with
+	 */
+	private void trainLBFGS(CompactExample[] training, ForkJoinPool pool){
+		int dimension = weights.length + 1; // the last entry is the intersect
+		boolean l1 = regularization == L1_REGULARIZATION;
+		
+		double[] x = new double[dimension];
+		double[] gradient = new double[dimension];
+		double value = evaluate(training, x, gradient, pool);
+		
+		// the most recent steps (s), changes in the gradient (y) and 1/(s.y), oldest first
+		ArrayList<double[]> sHistory = new ArrayList<double[]>();
+		ArrayList<double[]> yHistory = new ArrayList<double[]>();
+		ArrayList<Double> rhoHistory = new ArrayList<Double>();
+		
+		for( int it = 0; it < maxIterations; it++ ){
+			double[] pseudoGradient = l1 ? pseudoGradient(x, gradient) : gradient;
+			double[] direction = searchDirection(pseudoGradient, sHistory, yHistory, rhoHistory);
+			
+			if( l1 ){
+				// OWL-QN: don't move any weight against its pseudo-gradient
+				for( int j = 0; j < weights.length; j++ ){
+					if( direction[j]*pseudoGradient[j] >= 0 ){
+						direction[j] = 0;
+					}
+				}
+			}
+			
+			if( dot(direction, pseudoGradient) >= 0 ){
+				// the pseudo-gradient is 0 (or the approximation is bad), so we're done
+				break;
+			}
+			
+			// backtracking line search, starting with a unit step except the first time
+			double step = sHistory.isEmpty() ? 1.0/Math.sqrt(dot(pseudoGradient, pseudoGradient)) : 1.0;
+			double[] next = new double[dimension];
+			double[] nextGradient = new double[dimension];
+			double nextValue = Double.NaN;
+			boolean accepted = false;
+			
+			for( int tries = 0; tries < MAX_LINE_SEARCH && !accepted; tries++ ){
+				for( int j = 0; j < dimension; j++ ){
+					next[j] = x[j] + step*direction[j];
+				}
+				
+				if( l1 ){
+					// OWL-QN: weights that would cross 0 stop at 0
+					for( int j = 0; j < weights.length; j++ ){
+						double orthant = x[j] != 0 ? Math.signum(x[j]) : -Math.signum(pseudoGradient[j]);
+						
+						if( next[j]*orthant <= 0 ){
+							next[j] = 0;
+						}
+					}
+				}
+				
+				nextValue = evaluate(training, next, nextGradient, pool);
+				
+				double predicted = 0;
+				
+				for( int j = 0; j < dimension; j++ ){
+					predicted += pseudoGradient[j]*(next[j] - x[j]);
+				}
+				
+				// also rejects steps where the loss overflowed
+				accepted = nextValue <= value + SUFFICIENT_DECREASE*predicted;
+				step /= 2;
+			}
+			
+			if( !accepted ){
+				break;
+			}
+			
+			double[] s = new double[dimension];
+			double[] y = new double[dimension];
+			
+			for( int j = 0; j < dimension; j++ ){
+				s[j] = next[j] - x[j];
+				y[j] = nextGradient[j] - gradient[j];
+			}
+			
+			double sy = dot(s, y);
+			
+			// only keep steps where the curvature is positive so the approximation stays positive definite
+			if( sy > 0 ){
+				sHistory.add(s);
+				yHistory.add(y);
+				rhoHistory.add(1/sy);
+				
+				if( sHistory.size() > memory ){
+					sHistory.remove(0);
+					yHistory.remove(0);
+					rhoHistory.remove(0);
+				}
+			}
+			
+			double improvement = value - nextValue;
+			x = next;
+			gradient = nextGradient;
+			value = nextValue;
+			
+			if( improvement <= tolerance*Math.max(1.0, Math.abs(value)) ){
+				break;
+			}
+		}
+		
+		System.arraycopy(x, 0, weights, 0, weights.length);
+		b = x[weights.length];
+	}
+	
+	/**
+	 * Calculate the objective and its gradient at x.  The gradient is only of the
+	 * differentiable part: for L1 regularization the lambda*|w|_1 term is in the objective
+	 * but not the gradient.
+	 * 
+	 * @param training
+	 * @param x the weights followed by the intersect
+	 * @param gradient where to put the gradient
+	 * @param pool the threads to evaluate the objective with
+	 * @return the objective
+	 */
+	private double evaluate(CompactExample[] training, double[] x, double[] gradient, ForkJoinPool pool){
+		int numWeights = weights.length;
+		double[] sums = pool.invoke(new BatchGradient(training, 0, training.length, x, x[numWeights], true));
+		double n = training.length;
+		double value = sums[numWeights+1]/n;
+		
+		for( int j = 0; j <= numWeights; j++ ){
+			gradient[j] = -sums[j]/n;
+		}
+		
+		for( int j = 0; j < numWeights; j++ ){
+			if( regularization == L2_REGULARIZATION ){
+				value += lambda/2*x[j]*x[j];
+				gradient[j] += lambda*x[j];
+			}else if( regularization == L1_REGULARIZATION ){
+				value += lambda*Math.abs(x[j]);
+			}
+		}
+		
+		return value;
+	}
+	
+	/**
+	 * The OWL-QN pseudo-gradient: the gradient of the objective including the L1 term
+	 * where it's differentiable and, for weights at 0, the smallest (sub)gradient
+	 * 
+	 * @param x
+	 * @param gradient the gradient without the L1 term
+	 * @return the pseudo-gradient
+	 */
+	private double[] pseudoGradient(double[] x, double[] gradient){
+		double[] pseudo = gradient.clone();
+		
+		// the intersect (the last entry) isn't regularized
+		for( int j = 0; j < weights.length; j++ ){
+			if( x[j] > 0 ){
+				pseudo[j] += lambda;
+			}else if( x[j] < 0 ){
+				pseudo[j] -= lambda;
+			}else if( gradient[j] + lambda < 0 ){
+				pseudo[j] += lambda;
+			}else if( gradient[j] - lambda > 0 ){
+				pseudo[j] -= lambda;
+			}else{
+				pseudo[j] = 0;
+			}
+		}
+		
+		return pseudo;
+	}
+	
+	/**
+	 * The L-BFGS two loop recursion
+	 * 
+	 * @param gradient
+	 * @param sHistory
+	 * @param yHistory
+	 * @param rhoHistory
+	 * @return the approximate inverse Hessian times -gradient
+	 */
+	private static double[] searchDirection(double[] gradient, ArrayList<double[]> sHistory, ArrayList<double[]> yHistory,
+			ArrayList<Double> rhoHistory){
+		double[] q = gradient.clone();
+		int k = sHistory.size();
+		double[] alpha = new double[k];
+		
+		for( int i = k-1; i >= 0; i-- ){
+			alpha[i] = rhoHistory.get(i)*dot(sHistory.get(i), q);
+			addScaled(q, yHistory.get(i), -alpha[i]);
+		}
+		
+		if( k > 0 ){
+			// scale by the curvature along the most recent step
+			double[] y = yHistory.get(k-1);
+			double gamma = 1/(rhoHistory.get(k-1)*dot(y, y));
+			
+			for( int j = 0; j < q.length; j++ ){
+				q[j] *= gamma;
+			}
+		}
+		
+		for( int i = 0; i < k; i++ ){
+			double beta = rhoHistory.get(i)*dot(yHistory.get(i), q);
+			addScaled(q, sHistory.get(i), alpha[i] - beta);
+		}
+		
+		for( int j = 0; j < q.length; j++ ){
+			q[j] = -q[j];
+		}
+		
+		return q;
+	}
+	
+	private static double dot(double[] a, double[] b){
+		double sum = 0;
+		
+		for( int i = 0; i < a.length; i++ ){
+			sum += a[i]*b[i];
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * a = a + scale*b
+	 */
+	private static void addScaled(double[] a, double[] b, double scale){
+		for( int i = 0; i < a.length; i++ ){
+			a[i] += scale*b[i];
+		}
+	}
+	
+	/**
+	 * Computes the (negative) loss gradient summed over training[start] to training[end-1]
+	 * with weights w and intersect bias.  The second to last entry is the gradient for the
+	 * intersect.  If smooth, the gradient is of the loss L-BFGS uses and the last entry
+	 * is the sum of the losses, otherwise it's the (sub)gradient SGD uses and the last
+	 * entry is 0.
+	 * 
+	 * Ranges bigger than CHUNK_SIZE are split in half and the halves' gradients added, so
+	 * the order of the additions only depends on the range.
+	 */
+	private class BatchGradient extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+		
+		private final CompactExample[] training;
+		private final int start;
+		private final int end;
+		private final double[] w;
+		private final double bias;
+		private final boolean smooth;
+		
+		public BatchGradient(CompactExample[] training, int start, int end, double[] w, double bias, boolean smooth){
+			this.training = training;
+			this.start = start;
+			this.end = end;
+			this.w = w;
+			this.bias = bias;
+			this.smooth = smooth;
+		}
+		
+		@Override
+		protected double[] compute(){
+			if( end - start > CHUNK_SIZE ){
+				int middle = (start + end) >>> 1;
+				BatchGradient left = new BatchGradient(training, start, middle, w, bias, smooth);
+				left.fork();
+				double[] gradient = new BatchGradient(training, middle, end, w, bias, smooth).compute();
+				double[] leftGradient = left.join();
+				
+				for( int j = 0; j < leftGradient.length; j++ ){
+					leftGradient[j] += gradient[j];
+				}
+				
+				return leftGradient;
+			}
+			
+			int numWeights = weights.length; // w may also have the intersect at the end
+			double[] gradient = new double[numWeights+2];
+			
+			for( int i = start; i < end; i++ ){
+				CompactExample e = training[i];
+				int[] indices = e.getIndices();
+				double[] values = e.getValues();
+				double label = e.getLabel();
+				double margin = label * (e.dot(w) + bias);
+				double c = smooth ? smoothLossDerivative(margin) : lossDerivative(margin);
+				
+				for( int j = 0; j < indices.length; j++ ){
+					gradient[indices[j]] += label*values[j]*c;
+				}
+				
+				gradient[numWeights] += label*c;
+				
+				if( smooth ){
+					gradient[numWeights+1] += smoothLoss(margin);
+				}
+			}
+			
+			return gradient;
+		}
+	}
+	
+	/**
+	 * A sequence of gradient steps: the weights they update (possibly shared with other
+	 * learners), the step each of those weights is up to date with, its own intersect and
+	 * the number of its next step.
+	 */
+	private class Learner {
+		private final double[] w;
+		private final long[] lastStep;
+		private double bias;
+		private long step;
+		private final int stride; // how far step moves with each update
+		
+		public Learner(double[] w, long[] lastStep, double bias, long step, int stride){
+			this.w = w;
+			this.lastStep = lastStep;
+			this.bias = bias;
+			this.step = step;
+			this.stride = stride;
+		}
+		
+		/**
+		 * Take one gradient step on example e
+		 * 
+		 * @param e
+		 */
+		public void update(CompactExample e){
+			int[] indices = e.getIndices();
+			double[] values = e.getValues();
+			
+			for( int i = 0; i < indices.length; i++ ){
+				catchUp(indices[i]);
+			}
+			
+			double label = e.getLabel();
+			double c = lossDerivative(label * (e.dot(w) + bias));
+			
+			for( int i = 0; i < indices.length; i++ ){
+				int index = indices[i];
+				w[index] = regularize(w[index] + eta*label*values[i]*c, 1);
+				lastStep[index] = step+1;
+			}
+			
+			bias += eta*label*c;
+			step += stride;
+		}
+		
+		/**
+		 * Apply the regularization from the steps weight index has missed
+		 * 
+		 * @param index
+		 */
+		private void catchUp(int index){
+			long missed = step - lastStep[index];
+			
+			if( missed > 0 ){
+				w[index] = regularize(w[index], missed);
+				lastStep[index] = step;
+			}
+		}
+		
+		/**
+		 * Bring all of the weights up to date
+		 */
+		public void catchUpAll(){
+			for( int i = 0; i < w.length; i++ ){
+				catchUp(i);
+			}
+		}
+	}
+	
+	/**
+	 * @param margin y(w.x + b) for an example
+	 * @return how much the example's gradient step should be scaled by
+	 */
+	private double lossDerivative(double margin){
+		if( loss == EXPONENTIAL_LOSS ){
+			return Math.exp(-margin);
+		}else if( loss == HINGE_LOSS ){
+			return margin < 1 ? 1.0 : 0.0;
+		}else{
+			return 1/(1 + Math.exp(margin));
+		}
+	}
+	
+	/**
+	 * @param margin y(w.x + b) for an example
+	 * @return the example's loss
+	 */
+	private double lossValue(double margin){
+		if( loss == HINGE_LOSS ){
+			return Math.max(0, 1 - margin);
+		}else{
+			return smoothLoss(margin);
+		}
+	}
+	
+	/**
+	 * @param margin y(w.x + b) for an example
+	 * @return the loss L-BFGS minimizes for the example
+	 */
+	private double smoothLoss(double margin){
+		if( loss == EXPONENTIAL_LOSS ){
+			return Math.exp(-margin);
+		}else if( loss == HINGE_LOSS ){
+			double hinge = Math.max(0, 1 - margin);
+			return hinge*hinge;
+		}else{
+			// log(1 + exp(-margin)) without overflowing
+			return margin > 0 ? Math.log1p(Math.exp(-margin)) : -margin + Math.log1p(Math.exp(margin));
+		}
+	}
+	
+	/**
+	 * @param margin y(w.x + b) for an example
+	 * @return the negative derivative of smoothLoss
+	 */
+	private double smoothLossDerivative(double margin){
+		if( loss == HINGE_LOSS ){
+			return 2*Math.max(0, 1 - margin);
+		}else{
+			return lossDerivative(margin);
+		}
+	}
+	
+	/**
+	 * @param weight
+	 * @param steps
+	 * @return the weight after steps steps of only regularization
+	 */
+	private double regularize(double weight, long steps){
+		if( regularization == L2_REGULARIZATION ){
+			return weight * Math.pow(1 - eta*lambda, steps);
+		}else if( regularization == L1_REGULARIZATION ){
+			// move towards 0 by eta*lambda each step, but stop at 0
+			double shrink = steps*eta*lambda;
+			
+			if( weight > shrink ){
+				return weight - shrink;
+			}else if( weight < -shrink ){
+				return weight + shrink;
+			}else{
+				return 0.0;
+			}
+		}else{
+			return weight;
+		}
+	}
+	
 	@Override
 	public double classify(Example example) {
 		return getPrediction(example);
@@ -106,8 +1014,8 @@ public class GradientDescentClassifier implements Classifier {
 	public double confidence(Example example) {
 		return Math.abs(getDistanceFromHyperplane(example, weights, b));
 	}
-
-		
+	
+	
 	/**
 	 * Get the prediction from the current set of weights on this example
 	 * 
@@ -115,20 +1023,8 @@ public class GradientDescentClassifier implements Classifier {
 	 * @return
 	 */
 	protected double getPrediction(Example e){
-		return getPrediction(e, weights, b);
-	}
-	
-	/**
-	 * Get the prediction from the on this example from using weights w and inputB
-	 * 
-	 * @param e example to predict
-	 * @param w the set of weights to use
-	 * @param inputB the b value to use
-	 * @return the prediction
-	 */
-	protected static double getPrediction(Example e, HashMap<Integer, Double> w, double inputB){
-		double sum = getDistanceFromHyperplane(e,w,inputB);
-
+		double sum = getDistanceFromHyperplane(e, weights, b);
+		
 		if( sum > 0 ){
 			return 1.0;
 		}else if( sum < 0 ){
@@ -138,13 +1034,25 @@ public class GradientDescentClassifier implements Classifier {
 		}
 	}
 	
-	protected static double getDistanceFromHyperplane(Example e, HashMap<Integer, Double> w, double inputB){
+	/**
+	 * Get the distance of e from the hyperplane given by w and inputB.  Features
+	 * that weren't seen during training are ignored.
+	 * 
+	 * @param e
+	 * @param w the weights, indexed by dense feature index
+	 * @param inputB
+	 * @return the distance
+	 */
+	protected double getDistanceFromHyperplane(Example e, double[] w, double inputB){
 		double sum = inputB;
 		
-		//for(Integer featureIndex: w.keySet()){
 		// only need to iterate over non-zero features
 		for( Integer featureIndex: e.getFeatureSet()){
-			sum += w.get(featureIndex) * e.getFeature(featureIndex);
+			int index = indexer.getIndex(featureIndex);
+			
+			if( index != -1 ){
+				sum += w[index] * e.getFeature(featureIndex);
+			}
 		}
 		
 		return sum;
@@ -153,11 +1061,8 @@ public class GradientDescentClassifier implements Classifier {
 	public String toString(){
 		StringBuffer buffer = new StringBuffer();
 		
-		ArrayList<Integer> temp = new ArrayList<Integer>(weights.keySet());
-		Collections.sort(temp);
-		
-		for(Integer index: temp){
-			buffer.append(index + ":" + weights.get(index) + " ");
+		for( int i: indexer.getDenseIndicesInFeatureOrder() ){
+			buffer.append(indexer.getFeatureIndex(i) + ":" + weights[i] + " ");
 		}
 		
 		return buffer.substring(0, buffer.length()-1);
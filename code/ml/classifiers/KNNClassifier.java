@@ -1,26 +1,77 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import ml.data.DataSet;
 import ml.data.Example;
 import ml.utils.HashMapCounter;
 
 public class KNNClassifier implements Classifier {
+	// constants for the different ways of condensing the training data
+	public static final int NO_CONDENSING = 0;
+	public static final int CONDENSED_NN = 1; // Hart's condensed nearest neighbor
+	public static final int EDITED_CONDENSED_NN = 2; // Wilson editing followed by condensing
+	
 	private DataSet train;
 	private int k = 5;
+	private int condensing = NO_CONDENSING;
+	private int originalSize = 0; // how many examples we were given before condensing
+	
+	// dense copy of the training examples
+	private int[] featureIndices; // the feature index of each column
+	private double[][] rows;
+	private double[] labels;
+	
+	// scalar quantized copy of the rows for the first pass of the search
+	private boolean quantized = false;
+	private int rerankSize = 50; // how many candidates to re-rank with exact distances
+	private byte[] codes; // row-major, featureIndices.length codes per row
+	private double[] featureMin;
+	private double quantizationStep;
+	
+	// the rows are split into shards that are searched in parallel
+	private int numShards = 1;
+	private int[] shardStarts; // the first row of each shard, followed by the number of rows
 	
 	@Override
 	public void train(DataSet data) {
-		train = data;
-		// done!
+		originalSize = data.getData().size();
+		
+		if( condensing == NO_CONDENSING ){
+			train = data;
+		}else{
+			train = condense(data);
+		}
+		
+		ArrayList<Example> examples = train.getData();
+		featureIndices = train.getSortedFeatureIndices();
+		rows = new double[examples.size()][];
+		labels = new double[examples.size()];
+		
+		for( int i = 0; i < examples.size(); i++ ){
+			rows[i] = examples.get(i).getFeatures(featureIndices);
+			labels[i] = examples.get(i).getLabel();
+		}
+		
+		if( quantized ){
+			quantizeRows();
+		}else{
+			codes = null;
+		}
+		
+		// split the rows into (nearly) equal sized contiguous shards
+		int shards = Math.max(1, Math.min(numShards, rows.length));
+		shardStarts = new int[shards+1];
+		
+		for( int shard = 0; shard <= shards; shard++ ){
+			shardStarts[shard] = (int)((long)rows.length*shard/shards);
+		}
 	}
 
 	@Override
 	public double classify(Example example) {
-		//PriorityQueue<Double> q = new PriorityQueue<Double>(k);
 		return getLabel(example)[0];
 	}
 	
@@ -30,20 +81,32 @@ public class KNNClassifier implements Classifier {
 	}
 	
 	private double[] getLabel(Example example){
-		ArrayList<ScoredExample> distances = new ArrayList<ScoredExample>();
-		
-		for( Example e: train.getData() ){
-			distances.add(new ScoredExample(e, getDistance(example, e)));
-		}
-		
-		Collections.sort(distances);
+		int[] neighbors = findNeighbors(example.getFeatures(featureIndices));
 		
 		HashMapCounter<Double> counter = new HashMapCounter<Double>();
 		
-		for( int i = 0; i < k; i++ ){
-			counter.increment(distances.get(i).e.getLabel());
+		// fewer than k neighbors if condensing kept fewer than k examples
+		for( int i = 0; i < neighbors.length; i++ ){
+			counter.increment(labels[neighbors[i]]);
 		}
 		
+		double maxPrediction = getMajorityLabel(counter);
+		double maxCount = counter.get(maxPrediction);
+		
+		double[] temp = new double[2];
+		temp[0] = maxPrediction;
+		temp[1] = maxCount/(double)neighbors.length;
+		return temp;
+	}
+	
+	/**
+	 * Get the label with the most votes.  Ties go to whichever label the
+	 * counter iterates over first.
+	 * 
+	 * @param counter the votes for each label
+	 * @return the majority label
+	 */
+	static double getMajorityLabel(HashMapCounter<Double> counter){
 		double maxCount = -1;
 		double maxPrediction = 0.0;
 		
@@ -56,17 +119,311 @@ public class KNNClassifier implements Classifier {
 			}
 		}
 		
-		double[] temp = new double[2];
-		temp[0] = maxPrediction;
-		temp[1] = maxCount/(double)k;
-		return temp;
+		return maxPrediction;
+	}
+	
+	/**
+	 * Find the k nearest training rows to query.  Ties are broken in favor of
+	 * the example that came first in the training data.
+	 * 
+	 * If the rows are split into more than one shard, each shard is searched in
+	 * parallel for its own k nearest rows and these are merged into the overall k
+	 * nearest.
+	 * 
+	 * @param query the dense feature values of the example
+	 * @return the indices of the nearest rows, closest first
+	 */
+	private int[] findNeighbors(double[] query){
+		NeighborHeap heap = new NeighborHeap(k);
+		
+		if( shardStarts.length == 2 ){
+			searchRows(query, 0, rows.length, heap);
+		}else{
+			int numShards = shardStarts.length-1;
+			NeighborHeap[] shardHeaps = new NeighborHeap[numShards];
+			
+			IntStream.range(0, numShards).parallel().forEach(shard -> {
+				shardHeaps[shard] = new NeighborHeap(k);
+				searchRows(query, shardStarts[shard], shardStarts[shard+1], shardHeaps[shard]);
+			});
+			
+			// merge the nearest from each shard
+			double[] distances = new double[k];
+			int[] indices = new int[k];
+			
+			for( NeighborHeap shardHeap: shardHeaps ){
+				int count = shardHeap.drainSorted(distances, indices);
+				
+				for( int i = 0; i < count; i++ ){
+					heap.offer(distances[i], indices[i]);
+				}
+			}
+		}
+		
+		int[] neighbors = new int[heap.size()];
+		heap.drainSorted(null, neighbors);
+		return neighbors;
+	}
+	
+	/**
+	 * Offer the rows from begin (inclusive) to end (exclusive) to heap
+	 * along with their exact distance to query
+	 * 
+	 * @param query the dense feature values of the example
+	 * @param begin
+	 * @param end
+	 * @param heap
+	 */
+	private void searchRows(double[] query, int begin, int end, NeighborHeap heap){
+		if( codes == null ){
+			for( int i = begin; i < end; i++ ){
+				heap.offer(getDistance(query, rows[i]), i);
+			}
+		}else{
+			// first pass over the quantized codes to find the candidates,
+			// then re-rank the candidates using the full precision rows
+			for( int i: findCandidates(query, begin, end) ){
+				heap.offer(getDistance(query, rows[i]), i);
+			}
+		}
+	}
+	
+	/**
+	 * Scan the quantized codes of the rows from begin (inclusive) to end (exclusive)
+	 * for the rerankSize (or k if larger) rows that are approximately closest to query.
+	 * 
+	 * @param query the dense feature values of the example
+	 * @param begin
+	 * @param end
+	 * @return the indices of the candidate rows
+	 */
+	private int[] findCandidates(double[] query, int begin, int end){
+		int numCandidates = Math.max(k, rerankSize);
+		NeighborHeap candidateHeap = new NeighborHeap(numCandidates);
+		int numFeatures = featureIndices.length;
+		
+		// quantize the query the same way as the rows.  Values outside of the
+		// training range are allowed to go a byte's worth past either end so
+		// that they are still measured sensibly.
+		int[] queryCodes = new int[numFeatures];
+		
+		for( int f = 0; f < numFeatures; f++ ){
+			long code = Math.round((query[f] - featureMin[f])/quantizationStep);
+			queryCodes[f] = (int)Math.max(-255, Math.min(510, code));
+		}
+		
+		for( int i = begin, offset = begin*numFeatures; i < end; i++, offset += numFeatures ){
+			// four separate sums so the additions don't have to wait on each other
+			long dist = 0;
+			int f = 0;
+			
+			for( ; f + 3 < numFeatures; f += 4 ){
+				int diff0 = (codes[offset+f] & 0xff) - queryCodes[f];
+				int diff1 = (codes[offset+f+1] & 0xff) - queryCodes[f+1];
+				int diff2 = (codes[offset+f+2] & 0xff) - queryCodes[f+2];
+				int diff3 = (codes[offset+f+3] & 0xff) - queryCodes[f+3];
+				dist += diff0*diff0 + diff1*diff1 + diff2*diff2 + diff3*diff3;
+			}
+			
+			for( ; f < numFeatures; f++ ){
+				int diff = (codes[offset+f] & 0xff) - queryCodes[f];
+				dist += diff*diff;
+			}
+			
+			candidateHeap.offer(dist, i);
+		}
+		
+		int[] candidates = new int[candidateHeap.size()];
+		candidateHeap.drainSorted(null, candidates);
+		return candidates;
+	}
+	
+	/**
+	 * Store each row as one byte per feature.  Every feature is offset by its
+	 * minimum value in the training data and then divided by the same step size
+	 * (chosen so the feature with the largest range fits in a byte), so the squared
+	 * distance between codes is proportional to the squared distance between rows
+	 * up to the rounding error.
+	 */
+	private void quantizeRows(){
+		int numFeatures = featureIndices.length;
+		featureMin = new double[numFeatures];
+		codes = new byte[rows.length*numFeatures];
+		double maxRange = 0.0;
+		
+		for( int f = 0; f < numFeatures; f++ ){
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			
+			for( double[] row: rows ){
+				min = Math.min(min, row[f]);
+				max = Math.max(max, row[f]);
+			}
+			
+			featureMin[f] = rows.length == 0 ? 0 : min;
+			maxRange = Math.max(maxRange, max - min);
+		}
+		
+		quantizationStep = maxRange == 0 ? 1.0 : maxRange/255;
+		
+		for( int i = 0, offset = 0; i < rows.length; i++, offset += numFeatures ){
+			for( int f = 0; f < numFeatures; f++ ){
+				codes[offset+f] = (byte)Math.round((rows[i][f] - featureMin[f])/quantizationStep);
+			}
+		}
+	}
+	
+	/**
+	 * Condense the training data, keeping only the examples needed to preserve
+	 * the decision boundaries.
+	 * 
+	 * With EDITED_CONDENSED_NN, examples that disagree with the majority of their k
+	 * nearest neighbors are first removed (Wilson editing), which gets rid of noisy
+	 * examples that would otherwise all be kept by the condensing step.
+	 * 
+	 * Condensing (Hart) starts with a single example and repeatedly passes over the
+	 * data adding any example that the examples kept so far misclassify with 1-NN
+	 * until a pass adds nothing.
+	 * 
+	 * Throws a RuntimeException if editing leaves no examples to condense.
+	 * 
+	 * @param data the full training data
+	 * @return the condensed data, with examples in their original order
+	 */
+	private DataSet condense(DataSet data){
+		ArrayList<Example> examples = data.getData();
+		int size = examples.size();
+		
+		if( size == 0 ){
+			return data;
+		}
+		
+		int[] featureIndices = data.getSortedFeatureIndices();
+		double[][] rows = new double[size][];
+		
+		for( int i = 0; i < size; i++ ){
+			rows[i] = examples.get(i).getFeatures(featureIndices);
+		}
+		
+		// the candidates for condensing
+		boolean[] candidate = new boolean[size];
+		Arrays.fill(candidate, true);
+		
+		if( condensing == EDITED_CONDENSED_NN ){
+			candidate = edit(examples, rows);
+			
+			boolean anyCandidates = false;
+			
+			for( int i = 0; i < size && !anyCandidates; i++ ){
+				anyCandidates = candidate[i];
+			}
+			
+			if( !anyCandidates ){
+				throw new RuntimeException("Editing removed all " + size + " training examples (every example disagrees with its " +
+						Math.min(k, size-1) + " nearest neighbors); try a different k or CONDENSED_NN");
+			}
+		}
+		
+		boolean[] kept = new boolean[size];
+		int[] keptList = new int[size];
+		int numKept = 0;
+		
+		for( int i = 0; i < size && numKept == 0; i++ ){
+			if( candidate[i] ){
+				kept[i] = true;
+				keptList[numKept++] = i;
+			}
+		}
+		
+		boolean changed = true;
+		
+		while( changed ){
+			changed = false;
+			
+			for( int i = 0; i < size; i++ ){
+				if( candidate[i] && !kept[i] ){
+					// find the closest kept example
+					int closest = -1;
+					double closestDistance = Double.POSITIVE_INFINITY;
+					
+					for( int n = 0; n < numKept; n++ ){
+						double dist = getDistance(rows[i], rows[keptList[n]]);
+						
+						if( dist < closestDistance ){
+							closestDistance = dist;
+							closest = keptList[n];
+						}
+					}
+					
+					if( closest == -1 || examples.get(closest).getLabel() != examples.get(i).getLabel() ){
+						kept[i] = true;
+						keptList[numKept++] = i;
+						changed = true;
+					}
+				}
+			}
+		}
+		
+		DataSet condensed = new DataSet(data.getFeatureMap());
+		
+		for( int i = 0; i < size; i++ ){
+			if( kept[i] ){
+				condensed.addData(examples.get(i));
+			}
+		}
+		
+		return condensed;
 	}
 	
-	private double getDistance(Example e1, Example e2){
+	/**
+	 * Wilson editing: mark the examples whose label agrees with the majority of
+	 * their k nearest neighbors (excluding themselves).
+	 * 
+	 * @param examples
+	 * @param rows the dense feature values of the examples
+	 * @return which examples to keep
+	 */
+	private boolean[] edit(ArrayList<Example> examples, double[][] rows){
+		int size = rows.length;
+		boolean[] keep = new boolean[size];
+		int numNeighbors = Math.min(k, size-1);
+		
+		IntStream.range(0, size).parallel().forEach(i -> {
+			NeighborHeap heap = new NeighborHeap(numNeighbors);
+			
+			for( int j = 0; j < size; j++ ){
+				if( i != j ){
+					heap.offer(getDistance(rows[i], rows[j]), j);
+				}
+			}
+			
+			int[] neighbors = new int[numNeighbors];
+			heap.drainSorted(null, neighbors);
+			
+			HashMapCounter<Double> counter = new HashMapCounter<Double>();
+			
+			for( int n: neighbors ){
+				counter.increment(examples.get(n).getLabel());
+			}
+			
+			keep[i] = numNeighbors == 0 || getMajorityLabel(counter) == examples.get(i).getLabel();
+		});
+		
+		return keep;
+	}
+	
+	/**
+	 * Euclidean distance between two dense rows
+	 * 
+	 * @param row1
+	 * @param row2
+	 * @return the distance
+	 */
+	static double getDistance(double[] row1, double[] row2){
 		double dist = 0.0;
 		
-		for( Integer featureNum: train.getAllFeatureIndices() ){
-			double diff = e1.getFeature(featureNum) - e2.getFeature(featureNum);
+		for( int f = 0; f < row1.length; f++ ){
+			double diff = row1[f] - row2[f];
 			dist += diff*diff;
 		}
 		
@@ -76,20 +433,62 @@ public class KNNClassifier implements Classifier {
 	public void setK(int k){
 		this.k = k;
 	}
-
-	private class ScoredExample implements Comparable<ScoredExample>{
-		public double distance;
-		public Example e;
-		
-		public ScoredExample(Example e, double distance){
-			this.e = e;
-			this.distance = distance;
-		}
-
-		@Override
-		public int compareTo(ScoredExample o) {
-			// we want smallest first (i.e. closest distances)
-			return Double.compare(distance, o.distance);
-		}
+	
+	/**
+	 * Set how the training data should be condensed when training
+	 * 
+	 * @param condensing one of the condensing constants (e.g. CONDENSED_NN)
+	 */
+	public void setCondensing(int condensing){
+		this.condensing = condensing;
+	}
+	
+	/**
+	 * Set whether the training rows should also be stored as 8-bit quantized
+	 * codes.  The codes are scanned to find the closest candidates, which are then
+	 * re-ranked using the exact distances, so the neighbors are exact as long as the
+	 * true neighbors make it into the candidates.
+	 * 
+	 * @param quantized
+	 */
+	public void setQuantized(boolean quantized){
+		this.quantized = quantized;
+	}
+	
+	/**
+	 * Set how many candidates from the quantized scan are re-ranked with the
+	 * exact distances (at least k are always re-ranked)
+	 * 
+	 * @param rerankSize
+	 */
+	public void setRerankSize(int rerankSize){
+		this.rerankSize = rerankSize;
+	}
+	
+	/**
+	 * Set how many shards to split the training rows into.  Each query searches
+	 * the shards in parallel, so this would generally be set to the number of
+	 * available processors for large training sets.
+	 * 
+	 * @param numShards
+	 */
+	public void setNumShards(int numShards){
+		this.numShards = numShards;
+	}
+	
+	/**
+	 * @return the number of training examples kept after condensing
+	 */
+	public int getRetainedSize(){
+		return train.getData().size();
+	}
+	
+	/**
+	 * @return the number of training examples given divided by the number kept (1.0
+	 * if there weren't any)
+	 */
+	public double getReductionRatio(){
+		int retained = getRetainedSize();
+		return retained == 0 ? 1.0 : originalSize/(double)retained;
 	}
 }
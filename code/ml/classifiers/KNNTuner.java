@@ -0,0 +1,305 @@
+package ml.classifiers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+import ml.data.CrossValidationSet;
+import ml.data.DataSet;
+import ml.data.Example;
+import ml.utils.HashMapCounter;
+
+/**
+ * Tunes k for the KNNClassifier over an n-fold (non-randomized) cross validation.
+ * 
+ * Rather than retraining and recomputing every distance for each fold and each k,
+ * the neighbors of every example are found once and cached.  For each example we keep
+ * the closest maxK + (largest fold size) other examples, which guarantees that after
+ * removing the examples in the example's own test fold there are still at least maxK
+ * neighbors left.  All folds and all values of k are then scored from that cache.
+ * 
+ * The neighbor lists can optionally be stored in a memory-mapped file rather than on
+ * the heap for data sets where the cache doesn't fit in memory.  Either way they're
+ * split into windows of whole lists, since one buffer can only hold 2^31 bytes (on
+ * the heap, 2^31 ints), so the cache isn't limited to the size of one buffer.
+ * 
+ * @author huey
+ * 
+ */
+public class KNNTuner {
+	private static final int MAX_HEAP_WINDOW = Integer.MAX_VALUE - 8; // the longest array the VM allows
+	private static final int MAX_MAPPED_WINDOW = Integer.MAX_VALUE/4; // entries in at most 2GB
+	
+	private DataSet data;
+	private CrossValidationSet cvs;
+	private int maxK = 50;
+	private int blockSize = 256; // number of examples per block when computing distances
+	private String cacheFile = null; // if non-null, store the neighbor lists here
+	
+	private int listLength; // the number of neighbors cached for each example
+	private int examplesPerWindow; // the number of examples' lists in each window
+	private IntBuffer[] neighbors; // neighbor lists, listLength entries per example
+	
+	/**
+	 * Create a new tuner over a numSplits-fold cross validation of data
+	 * 
+	 * @param data
+	 * @param numSplits
+	 */
+	public KNNTuner(DataSet data, int numSplits){
+		this.data = data;
+		cvs = new CrossValidationSet(data, numSplits);
+	}
+	
+	/**
+	 * Set the largest k to evaluate.  All k from 1 to maxK are evaluated.
+	 * 
+	 * @param maxK
+	 */
+	public void setMaxK(int maxK){
+		this.maxK = maxK;
+		neighbors = null;
+	}
+	
+	/**
+	 * Set the number of examples in each block of the distance computation
+	 * 
+	 * @param blockSize
+	 */
+	public void setBlockSize(int blockSize){
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * Store the neighbor cache in a memory-mapped file rather than on the heap.  The
+	 * cache is reused by every call to tune, so the tuner never deletes the file: it
+	 * belongs to the caller, who should delete it once they're done tuning.
+	 * 
+	 * @param filename the file to use for the cache (null to store on the heap)
+	 */
+	public void setCacheFile(String filename){
+		this.cacheFile = filename;
+		neighbors = null;
+	}
+	
+	/**
+	 * Calculate the average cross validation accuracy for every k from 1 to maxK.
+	 * 
+	 * @return the accuracies, where entry i is the accuracy for k = i+1
+	 */
+	public double[] tune(){
+		if( neighbors == null ){
+			buildCache();
+		}
+		
+		ArrayList<Example> examples = data.getData();
+		int numSplits = cvs.getNumSplits();
+		int k = getEffectiveMaxK();
+		double[] accuracies = new double[k];
+		
+		for( int split = 0; split < numSplits; split++ ){
+			int[] range = cvs.getTestRange(split);
+			int[] correct = new int[k];
+			
+			for( int i = range[0]; i < range[1]; i++ ){
+				HashMapCounter<Double> counter = new HashMapCounter<Double>();
+				double label = examples.get(i).getLabel();
+				int found = 0;
+				
+				for( int n = 0; n < listLength && found < k; n++ ){
+					int neighbor = getNeighbor(i, n);
+					
+					// skip anything that is in the test fold
+					if( neighbor < range[0] || neighbor >= range[1] ){
+						counter.increment(examples.get(neighbor).getLabel());
+						
+						if( KNNClassifier.getMajorityLabel(counter) == label ){
+							correct[found]++;
+						}
+						
+						found++;
+					}
+				}
+			}
+			
+			for( int kIndex = 0; kIndex < k; kIndex++ ){
+				accuracies[kIndex] += correct[kIndex]/(double)(range[1]-range[0]);
+			}
+		}
+		
+		for( int kIndex = 0; kIndex < k; kIndex++ ){
+			accuracies[kIndex] /= numSplits;
+		}
+		
+		return accuracies;
+	}
+	
+	/**
+	 * Find the k with the best cross validation accuracy
+	 * 
+	 * @return the best k
+	 */
+	public int getBestK(){
+		double[] accuracies = tune();
+		int best = 0;
+		
+		for( int i = 1; i < accuracies.length; i++ ){
+			if( accuracies[i] > accuracies[best] ){
+				best = i;
+			}
+		}
+		
+		return best+1;
+	}
+	
+	/**
+	 * Compute the distances between all pairs of examples and cache the closest
+	 * listLength neighbors of each example.  Examples are processed in blocks
+	 * so that each block of rows is compared against a block of columns while both
+	 * are in cache, and the row blocks are processed in parallel.
+	 */
+	private void buildCache(){
+		ArrayList<Example> examples = data.getData();
+		int size = examples.size();
+		
+		if( size < 2 ){
+			throw new RuntimeException("Need at least two examples to tune k");
+		}
+		
+		listLength = Math.min(maxK + getMaxFoldSize(), size-1);
+		neighbors = allocate(size);
+		
+		// dense copy of the data for fast distance calculations
+		int[] featureIndices = data.getSortedFeatureIndices();
+		double[][] rows = new double[size][];
+		
+		for( int i = 0; i < size; i++ ){
+			rows[i] = examples.get(i).getFeatures(featureIndices);
+		}
+		
+		int numBlocks = (size + blockSize - 1)/blockSize;
+		
+		IntStream.range(0, numBlocks).parallel().forEach(block -> {
+			int begin = block*blockSize;
+			int end = Math.min(begin + blockSize, size);
+			
+			NeighborHeap[] heaps = new NeighborHeap[end-begin];
+			
+			for( int i = 0; i < heaps.length; i++ ){
+				heaps[i] = new NeighborHeap(listLength);
+			}
+			
+			for( int colBegin = 0; colBegin < size; colBegin += blockSize ){
+				int colEnd = Math.min(colBegin + blockSize, size);
+				
+				for( int i = begin; i < end; i++ ){
+					for( int j = colBegin; j < colEnd; j++ ){
+						if( i != j ){
+							heaps[i-begin].offer(KNNClassifier.getDistance(rows[i], rows[j]), j);
+						}
+					}
+				}
+			}
+			
+			int[] sorted = new int[listLength];
+			
+			for( int i = begin; i < end; i++ ){
+				heaps[i-begin].drainSorted(null, sorted);
+				
+				for( int n = 0; n < listLength; n++ ){
+					putNeighbor(i, n, sorted[n]);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Allocate space for the neighbor lists either on the heap or in the cache file,
+	 * split into as many windows as needed
+	 * 
+	 * @param size the number of examples
+	 * @return the windows to store the neighbors in
+	 */
+	private IntBuffer[] allocate(int size){
+		examplesPerWindow = (cacheFile == null ? MAX_HEAP_WINDOW : MAX_MAPPED_WINDOW)/listLength;
+		IntBuffer[] windows = new IntBuffer[(size + examplesPerWindow - 1)/examplesPerWindow];
+		
+		if( cacheFile == null ){
+			for( int w = 0; w < windows.length; w++ ){
+				windows[w] = IntBuffer.allocate(getWindowSize(w, size));
+			}
+			
+			return windows;
+		}
+		
+		try( RandomAccessFile file = new RandomAccessFile(cacheFile, "rw") ){
+			// the mappings stay valid after the file is closed
+			FileChannel channel = file.getChannel();
+			
+			for( int w = 0; w < windows.length; w++ ){
+				long position = (long)w*examplesPerWindow*listLength*4;
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, (long)getWindowSize(w, size)*4);
+				windows[w] = buffer.asIntBuffer();
+			}
+			
+			return windows;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to map neighbor cache file " + cacheFile, e);
+		}
+	}
+	
+	/**
+	 * @param window
+	 * @param size the number of examples
+	 * @return the number of entries in the window
+	 */
+	private int getWindowSize(int window, int size){
+		int begin = window*examplesPerWindow;
+		return (Math.min(begin + examplesPerWindow, size) - begin)*listLength;
+	}
+	
+	/**
+	 * @param example
+	 * @param n
+	 * @return the example's nth closest cached neighbor
+	 */
+	private int getNeighbor(int example, int n){
+		return neighbors[example/examplesPerWindow].get((example%examplesPerWindow)*listLength + n);
+	}
+	
+	/**
+	 * Set the example's nth closest cached neighbor
+	 * 
+	 * @param example
+	 * @param n
+	 * @param neighbor
+	 */
+	private void putNeighbor(int example, int n, int neighbor){
+		neighbors[example/examplesPerWindow].put((example%examplesPerWindow)*listLength + n, neighbor);
+	}
+	
+	/**
+	 * @return the largest k that can be evaluated given how many neighbors are cached
+	 */
+	private int getEffectiveMaxK(){
+		return Math.min(maxK, data.getData().size() - getMaxFoldSize());
+	}
+	
+	/**
+	 * @return the number of examples in the largest test fold
+	 */
+	private int getMaxFoldSize(){
+		int maxFoldSize = 0;
+		
+		for( int split = 0; split < cvs.getNumSplits(); split++ ){
+			int[] range = cvs.getTestRange(split);
+			maxFoldSize = Math.max(maxFoldSize, range[1]-range[0]);
+		}
+		
+		return maxFoldSize;
+	}
+}
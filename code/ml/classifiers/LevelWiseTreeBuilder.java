@@ -0,0 +1,423 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import ml.data.DataSet;
+import ml.data.Example;
+import ml.utils.ArgSort;
+
+/**
+ * Builds a decision tree one level at a time rather than one node at a time.
+ * 
+ * The data is stored by column and each column is sorted once up front.  Each example
+ * keeps track of which node on the current level (the frontier) it's at, so that a
+ * single pass over a sorted column updates the split statistics for every frontier
+ * node at once.  Each level is then one pass over each column, regardless of how
+ * many nodes are on the level.  Examples that end up at leaves are dropped from
+ * the sorted columns as we go.
+ * 
+ * The trees built are identical to those built by BinaryDecisionTreeClassifier's
+ * default (recursive) builder.  The sorted columns are only read while building,
+ * so one builder can be shared to build many trees (e.g. for a random forest)
+ * over different samples of the data.
+ * 
+ * @author huey
+ * 
+ */
+class LevelWiseTreeBuilder {
+	private int numRows;
+	private int[] featureIndices; // the feature index of each column
+	private double[][] columns; // columns[column][row]
+	private boolean[] negative; // whether each row is a negative example
+	private int[][] sortedRows; // the rows in increasing order of each column's value
+	private boolean parallel;
+	
+	/**
+	 * Store data by column and sort each column
+	 * 
+	 * @param data
+	 * @param parallel whether the columns should be processed in parallel
+	 */
+	public LevelWiseTreeBuilder(DataSet data, boolean parallel){
+		this.parallel = parallel;
+		ArrayList<Example> examples = data.getData();
+		numRows = examples.size();
+		featureIndices = data.getSortedFeatureIndices();
+		columns = new double[featureIndices.length][numRows];
+		negative = new boolean[numRows];
+		
+		for( int row = 0; row < numRows; row++ ){
+			Example e = examples.get(row);
+			negative[row] = e.getLabel() == BinaryDecisionTreeClassifier.NEGATIVE_LABEL;
+			
+			for( int column = 0; column < featureIndices.length; column++ ){
+				columns[column][row] = e.getFeature(featureIndices[column]);
+			}
+		}
+		
+		// the sort is stable, so rows with the same value stay in data order,
+		// just like when sorting the data at a node
+		sortedRows = new int[featureIndices.length][];
+		IntStream range = IntStream.range(0, featureIndices.length);
+		
+		if( parallel ){
+			range = range.parallel();
+		}
+		
+		range.forEach(column -> sortedRows[column] = ArgSort.argsort(columns[column]));
+	}
+	
+	/**
+	 * Build a tree over the data
+	 * 
+	 * @param depthLimit the maximum depth of the tree
+	 * @return the root of the tree
+	 */
+	public DecisionTreeNode build(int depthLimit){
+		return build(depthLimit, null, featureIndices.length, null);
+	}
+	
+	/**
+	 * Build a tree over a sample of the data, only considering a random subset of
+	 * the features at each node (as in a random forest).  The data is only read, so
+	 * multiple trees can be built at the same time.
+	 * 
+	 * @param depthLimit the maximum depth of the tree
+	 * @param rowCount the number of times each row is in the sample, or null for every row once
+	 * @param featuresPerNode the number of features to consider splitting on at each node
+	 * @param random used to pick the features (can be null if featuresPerNode is at least
+	 * the number of features)
+	 * @return the root of the tree
+	 */
+	public DecisionTreeNode build(int depthLimit, int[] rowCount, int featuresPerNode, Random random){
+		if( rowCount == null ){
+			rowCount = new int[numRows];
+			Arrays.fill(rowCount, 1);
+		}
+		
+		// the sorted columns are compacted as rows reach leaves, so work on a copy
+		int[][] order = new int[sortedRows.length][];
+		
+		for( int column = 0; column < sortedRows.length; column++ ){
+			order[column] = sortedRows[column].clone();
+		}
+		
+		int activeRows = numRows;
+		int[] nodeOf = new int[numRows]; // the frontier node of each row, or -1 if it's at a leaf
+		
+		Level level = new Level(1);
+		level.used[0] = new boolean[featureIndices.length];
+		level.depthLimit[0] = depthLimit;
+		
+		for( int row = 0; row < numRows; row++ ){
+			if( rowCount[row] > 0 ){
+				level.count(0, row, rowCount[row]);
+			}else{
+				nodeOf[row] = -1;
+			}
+		}
+		
+		DecisionTreeNode[] root = new DecisionTreeNode[1];
+		level.attach[0] = n -> root[0] = n;
+		
+		while( level.size > 0 ){
+			// base cases: the nodes that are leaves
+			boolean anySplits = false;
+			
+			for( int node = 0; node < level.size; node++ ){
+				int total = level.negatives[node] + level.positives[node];
+				int usedCount = 0;
+				
+				for( boolean u: level.used[node] ){
+					if( u ){
+						usedCount++;
+					}
+				}
+				
+				if( level.majorityCount(node) == total ||
+					usedCount == featureIndices.length ||
+					level.depthLimit[node] == 0 ){
+					level.attach[node].set(new DecisionTreeNode(level.majorityLabel(node), level.confidence(node)));
+				}else{
+					level.splitting[node] = true;
+					level.candidate[node] = pickCandidates(level.used[node], featuresPerNode, random);
+					anySplits = true;
+				}
+			}
+			
+			if( !anySplits ){
+				break;
+			}
+			
+			for( int row = 0; row < numRows; row++ ){
+				if( nodeOf[row] >= 0 && !level.splitting[nodeOf[row]] ){
+					nodeOf[row] = -1;
+				}
+			}
+			
+			// one pass over each column for the whole level
+			double[][] error = new double[featureIndices.length][];
+			double[][] threshold = new double[featureIndices.length][];
+			int[] newActiveRows = new int[1];
+			final int currentRows = activeRows;
+			final Level currentLevel = level;
+			final int[] currentCount = rowCount;
+			IntStream range = IntStream.range(0, featureIndices.length);
+			
+			if( parallel ){
+				range = range.parallel();
+			}
+			
+			range.forEach(column -> {
+				error[column] = new double[currentLevel.size];
+				threshold[column] = new double[currentLevel.size];
+				int remaining = scanColumn(column, order[column], currentRows, nodeOf, currentCount, currentLevel, error[column], threshold[column]);
+				
+				if( column == 0 ){
+					newActiveRows[0] = remaining;
+				}
+			});
+			
+			activeRows = newActiveRows[0];
+			
+			// pick the best column for each node.  Ties go to the lower feature index.
+			int[] bestColumn = new int[level.size];
+			double[] bestThreshold = new double[level.size];
+			DecisionTreeNode[] split = new DecisionTreeNode[level.size];
+			
+			for( int node = 0; node < level.size; node++ ){
+				if( level.splitting[node] ){
+					double bestError = 1.0;
+					bestColumn[node] = -1;
+					
+					for( int column = 0; column < featureIndices.length; column++ ){
+						if( level.candidate[node][column] && error[column][node] < bestError ){
+							bestError = error[column][node];
+							bestColumn[node] = column;
+							bestThreshold[node] = threshold[column][node];
+						}
+					}
+					
+					split[node] = new DecisionTreeNode(featureIndices[bestColumn[node]], bestThreshold[node],
+							level.majorityLabel(node), level.confidence(node));
+					level.attach[node].set(split[node]);
+				}
+			}
+			
+			// send each row to a child.  Child 2*node is the left child and 2*node+1 the right.
+			int[] childSize = new int[2*level.size];
+			
+			for( int i = 0; i < activeRows; i++ ){
+				int row = order[0][i];
+				int node = nodeOf[row];
+				int child = columns[bestColumn[node]][row] <= bestThreshold[node] ? 2*node : 2*node+1;
+				nodeOf[row] = child;
+				childSize[child]++;
+			}
+			
+			// empty children are leaves with the parent's majority, the rest are the next level
+			int[] childNode = new int[2*level.size];
+			int nextSize = 0;
+			
+			for( int child = 0; child < childSize.length; child++ ){
+				childNode[child] = childSize[child] > 0 ? nextSize++ : -1;
+			}
+			
+			Level next = new Level(nextSize);
+			
+			for( int child = 0; child < childSize.length; child++ ){
+				int parent = child/2;
+				
+				if( !level.splitting[parent] ){
+					continue;
+				}
+				
+				DecisionTreeNode parentNode = split[parent];
+				boolean left = child % 2 == 0;
+				
+				if( childNode[child] == -1 ){
+					DecisionTreeNode leaf = new DecisionTreeNode(level.majorityLabel(parent), level.confidence(parent));
+					
+					if( left ){
+						parentNode.setLeft(leaf);
+					}else{
+						parentNode.setRight(leaf);
+					}
+				}else{
+					int node = childNode[child];
+					next.used[node] = level.used[parent].clone();
+					next.used[node][bestColumn[parent]] = true;
+					next.depthLimit[node] = level.depthLimit[parent]-1;
+					next.attach[node] = left ? n -> parentNode.setLeft(n) : n -> parentNode.setRight(n);
+				}
+			}
+			
+			for( int i = 0; i < activeRows; i++ ){
+				int row = order[0][i];
+				nodeOf[row] = childNode[nodeOf[row]];
+				next.count(nodeOf[row], row, rowCount[row]);
+			}
+			
+			level = next;
+		}
+		
+		return root[0];
+	}
+	
+	/**
+	 * Pick the columns a node may split on
+	 * 
+	 * @param used the columns used on the path to the node
+	 * @param featuresPerNode how many columns to pick
+	 * @param random
+	 * @return whether each column was picked
+	 */
+	private boolean[] pickCandidates(boolean[] used, int featuresPerNode, Random random){
+		boolean[] candidate = new boolean[used.length];
+		int[] unused = new int[used.length];
+		int numUnused = 0;
+		
+		for( int column = 0; column < used.length; column++ ){
+			if( !used[column] ){
+				unused[numUnused++] = column;
+			}
+		}
+		
+		if( featuresPerNode >= numUnused ){
+			for( int i = 0; i < numUnused; i++ ){
+				candidate[unused[i]] = true;
+			}
+		}else{
+			// partial Fisher-Yates shuffle
+			for( int i = 0; i < featuresPerNode; i++ ){
+				int j = i + random.nextInt(numUnused - i);
+				int temp = unused[i];
+				unused[i] = unused[j];
+				unused[j] = temp;
+				candidate[unused[i]] = true;
+			}
+		}
+		
+		return candidate;
+	}
+	
+	/**
+	 * Go through the rows in sorted order for column and find the best threshold
+	 * for each frontier node, considering every position in the sorted order just
+	 * like BinaryDecisionTreeClassifier does.  Rows that are no longer at a frontier
+	 * node are removed from rows.
+	 * 
+	 * @param column
+	 * @param rows the rows sorted by the column's values
+	 * @param length the number of entries in rows
+	 * @param nodeOf the frontier node of each row
+	 * @param rowCount the number of times each row is in the data
+	 * @param level the frontier nodes
+	 * @param error the best error for each node
+	 * @param threshold the threshold for the best error for each node
+	 * @return the number of entries left in rows
+	 */
+	private int scanColumn(int column, int[] rows, int length, int[] nodeOf, int[] rowCount, Level level, double[] error, double[] threshold){
+		double[] values = columns[column];
+		int[] leftNeg = new int[level.size];
+		int[] leftPos = new int[level.size];
+		double[] bestAccuracy = new double[level.size];
+		boolean[] seen = new boolean[level.size];
+		int kept = 0;
+		
+		for( int i = 0; i < length; i++ ){
+			int row = rows[i];
+			int node = nodeOf[row];
+			
+			if( node < 0 ){
+				continue;
+			}
+			
+			rows[kept++] = row;
+			
+			if( !level.candidate[node][column] ){
+				continue;
+			}
+			
+			if( negative[row] ){
+				leftNeg[node] += rowCount[row];
+			}else{
+				leftPos[node] += rowCount[row];
+			}
+			
+			int leftCount = leftNeg[node] > leftPos[node] ? leftNeg[node] : leftPos[node];
+			int rightNeg = level.negatives[node] - leftNeg[node];
+			int rightPos = level.positives[node] - leftPos[node];
+			int rightCount = rightNeg > rightPos ? rightNeg : rightPos;
+			double accuracy = (leftCount+rightCount)/(double)(level.negatives[node] + level.positives[node]);
+			
+			// the first example at the node sets the initial threshold
+			if( !seen[node] || accuracy > bestAccuracy[node] ){
+				seen[node] = true;
+				bestAccuracy[node] = accuracy;
+				threshold[node] = values[row];
+			}
+		}
+		
+		for( int node = 0; node < level.size; node++ ){
+			error[node] = 1-bestAccuracy[node];
+		}
+		
+		return kept;
+	}
+	
+	/**
+	 * The nodes on one level of the tree that still need to be built
+	 */
+	private class Level{
+		private int size;
+		private int[] negatives;
+		private int[] positives;
+		private int[] depthLimit;
+		private boolean[][] used; // the columns used on the path to each node
+		private boolean[][] candidate; // the columns each node may split on
+		private boolean[] splitting; // whether each node is split (vs. a leaf)
+		private Attachment[] attach; // where each node goes in the tree
+		
+		public Level(int size){
+			this.size = size;
+			negatives = new int[size];
+			positives = new int[size];
+			depthLimit = new int[size];
+			used = new boolean[size][];
+			candidate = new boolean[size][];
+			splitting = new boolean[size];
+			attach = new Attachment[size];
+		}
+		
+		public void count(int node, int row, int count){
+			if( negative[row] ){
+				negatives[node] += count;
+			}else{
+				positives[node] += count;
+			}
+		}
+		
+		public double majorityLabel(int node){
+			return negatives[node] > positives[node] ? BinaryDecisionTreeClassifier.NEGATIVE_LABEL : BinaryDecisionTreeClassifier.POSITIVE_LABEL;
+		}
+		
+		public int majorityCount(int node){
+			return negatives[node] > positives[node] ? negatives[node] : positives[node];
+		}
+		
+		public double confidence(int node){
+			return ((double)majorityCount(node))/(negatives[node] + positives[node]);
+		}
+	}
+	
+	/**
+	 * Puts a built node into its place in the tree
+	 */
+	private interface Attachment{
+		public void set(DecisionTreeNode node);
+	}
+}
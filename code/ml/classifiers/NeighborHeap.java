@@ -0,0 +1,148 @@
+package ml.classifiers;
+
+/**
+ * A bounded max-heap of (distance, index) pairs used to keep the closest
+ * neighbors seen so far without sorting every candidate.  Ties in distance
+ * are broken by index so that results match a stable sort over the
+ * candidates in index order.
+ * 
+ * @author huey
+ * 
+ */
+class NeighborHeap {
+	private double[] distances;
+	private int[] indices;
+	private int size = 0;
+	
+	/**
+	 * Create a new heap that holds at most capacity neighbors
+	 * 
+	 * @param capacity
+	 */
+	public NeighborHeap(int capacity){
+		distances = new double[capacity];
+		indices = new int[capacity];
+	}
+	
+	/**
+	 * Offer a candidate neighbor.  It is only kept if the heap isn't full
+	 * or it is closer than the current farthest neighbor.
+	 * 
+	 * @param distance
+	 * @param index
+	 */
+	public void offer(double distance, int index){
+		if( size < distances.length ){
+			distances[size] = distance;
+			indices[size] = index;
+			siftUp(size);
+			size++;
+		}else if( distances.length > 0 && isCloser(distance, index, distances[0], indices[0]) ){
+			distances[0] = distance;
+			indices[0] = index;
+			siftDown(0);
+		}
+	}
+	
+	/**
+	 * @return the number of neighbors currently held
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * @return the distance of the farthest neighbor held if the heap is full, otherwise infinity
+	 */
+	public double worstDistance(){
+		return size < distances.length || size == 0 ? Double.POSITIVE_INFINITY : distances[0];
+	}
+	
+	/**
+	 * Remove everything from the heap so it can be reused
+	 */
+	public void clear(){
+		size = 0;
+	}
+	
+	/**
+	 * Empty the heap into the arrays, closest neighbor first.  The arrays
+	 * must have room for size() entries.  The heap is empty afterwards.
+	 * 
+	 * @param outDistances the distances of the neighbors (may be null)
+	 * @param outIndices the indices of the neighbors
+	 * @return the number of neighbors written
+	 */
+	public int drainSorted(double[] outDistances, int[] outIndices){
+		int count = size;
+		
+		for( int i = count-1; i >= 0; i-- ){
+			if( outDistances != null ){
+				outDistances[i] = distances[0];
+			}
+			
+			outIndices[i] = indices[0];
+			
+			size--;
+			distances[0] = distances[size];
+			indices[0] = indices[size];
+			siftDown(0);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * @return whether (d1, i1) should come before (d2, i2)
+	 */
+	private static boolean isCloser(double d1, int i1, double d2, int i2){
+		int comp = Double.compare(d1, d2);
+		return comp < 0 || (comp == 0 && i1 < i2);
+	}
+	
+	private void siftUp(int pos){
+		while( pos > 0 ){
+			int parent = (pos-1)/2;
+			
+			if( isCloser(distances[parent], indices[parent], distances[pos], indices[pos]) ){
+				swap(parent, pos);
+				pos = parent;
+			}else{
+				break;
+			}
+		}
+	}
+	
+	private void siftDown(int pos){
+		while( true ){
+			int left = 2*pos+1;
+			int right = left+1;
+			int largest = pos;
+			
+			if( left < size && isCloser(distances[largest], indices[largest], distances[left], indices[left]) ){
+				largest = left;
+			}
+			
+			if( right < size && isCloser(distances[largest], indices[largest], distances[right], indices[right]) ){
+				largest = right;
+			}
+			
+			if( largest == pos ){
+				break;
+			}
+			
+			swap(pos, largest);
+			pos = largest;
+		}
+	}
+	
+	private void swap(int i, int j){
+		double tempDistance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = tempDistance;
+		
+		int tempIndex = indices[i];
+		indices[i] = indices[j];
+		indices[j] = tempIndex;
+	}
+}
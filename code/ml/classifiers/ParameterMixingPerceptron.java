@@ -0,0 +1,378 @@
+package ml.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import ml.data.CompactExample;
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * Perceptron trained with iterative parameter mixing: the data is split into shards,
+ * a perceptron is trained on each shard for one iteration starting from the current
+ * weights, the shards' weights are averaged (mixed) and the average is sent back out
+ * to the shards for the next iteration.
+ * 
+ * The shards can either be threads in this JVM or separate worker processes (each
+ * with its own heap) that this JVM starts and talks to over loopback sockets.  The
+ * workers are this class's main method and only ever hold their own shard.  Either
+ * way the shards are mixed in the same order, so for a given seed both give exactly
+ * the same weights.
+ * 
+ * The data has to be split into shards up front, so this can't train from a stream
+ * (train(Iterable) throws an exception).
+ * 
+ * @author huey
+ * 
+ */
+public class ParameterMixingPerceptron extends PerceptronClassifier {
+	// commands from the trainer to the workers
+	private static final int STOP = 0;
+	private static final int TRAIN = 1;
+	
+	private static final int WORKER_TIMEOUT = 60000; // ms to wait for a worker to connect
+	
+	private int numShards = 4;
+	private boolean useProcesses = false;
+	
+	/**
+	 * Set the number of shards to split the data into (default 4)
+	 * 
+	 * @param numShards
+	 */
+	public void setNumShards(int numShards){
+		if( numShards < 1 ){
+			throw new RuntimeException("Need at least 1 shard: " + numShards);
+		}
+		
+		this.numShards = numShards;
+	}
+	
+	/**
+	 * Set whether each shard should be trained in its own worker process rather
+	 * than a thread (default false)
+	 * 
+	 * @param useProcesses
+	 */
+	public void setUseProcesses(boolean useProcesses){
+		this.useProcesses = useProcesses;
+	}
+	
+	@Override
+	public void train(DataSet data) {
+		initializeWeights(data);
+		
+		List<CompactExample> training = indexer.compact(data.getData());
+		Collections.shuffle(training, rand);
+		
+		Shard[] shards = new Shard[numShards];
+		
+		for( int s = 0; s < numShards; s++ ){
+			int begin = (int)((long)training.size()*s/numShards);
+			int end = (int)((long)training.size()*(s+1)/numShards);
+			shards[s] = new Shard(training.subList(begin, end).toArray(new CompactExample[0]), weights.length, rand.nextLong());
+		}
+		
+		if( useProcesses ){
+			trainWorkers(shards);
+		}else{
+			trainThreads(shards);
+		}
+		
+		// mixing never stops early
+		iterationsRun = iterations;
+	}
+	
+	/**
+	 * The shards are split from all of the data before training, so streaming isn't
+	 * supported and this always throws an exception rather than quietly training an
+	 * unsharded perceptron.
+	 */
+	@Override
+	public void train(Iterable<Example> source){
+		throw new RuntimeException("Parameter mixing needs all of the data to shard it, so can't train from a stream");
+	}
+	
+	/**
+	 * Train with a thread per shard
+	 * 
+	 * @param shards
+	 */
+	private void trainThreads(Shard[] shards){
+		double[][] shardWeights = new double[numShards][];
+		double[] shardB = new double[numShards];
+		
+		for( int it = 0; it < iterations; it++ ){
+			IntStream.range(0, numShards).parallel().forEach(s -> {
+				shardWeights[s] = weights.clone();
+				shardB[s] = shards[s].train(shardWeights[s], b);
+			});
+			
+			mix(shardWeights, shardB);
+		}
+	}
+	
+	/**
+	 * Train with a worker process per shard
+	 * 
+	 * @param shards
+	 */
+	private void trainWorkers(Shard[] shards){
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process[] workers = new Process[numShards];
+		Socket[] sockets = new Socket[numShards];
+		
+		try( ServerSocket server = new ServerSocket(0, numShards, InetAddress.getLoopbackAddress()) ){
+			server.setSoTimeout(WORKER_TIMEOUT);
+			
+			for( int s = 0; s < numShards; s++ ){
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						ParameterMixingPerceptron.class.getName(), Integer.toString(server.getLocalPort()));
+				builder.inheritIO();
+				workers[s] = builder.start();
+			}
+			
+			// the shards go to the workers in the order they connect
+			DataInputStream[] in = new DataInputStream[numShards];
+			DataOutputStream[] out = new DataOutputStream[numShards];
+			
+			for( int s = 0; s < numShards; s++ ){
+				sockets[s] = server.accept();
+				in[s] = new DataInputStream(new BufferedInputStream(sockets[s].getInputStream()));
+				out[s] = new DataOutputStream(new BufferedOutputStream(sockets[s].getOutputStream()));
+				shards[s].write(out[s]);
+			}
+			
+			double[][] shardWeights = new double[numShards][weights.length];
+			double[] shardB = new double[numShards];
+			
+			for( int it = 0; it < iterations; it++ ){
+				// send all of the weights first so the workers train at the same time
+				for( int s = 0; s < numShards; s++ ){
+					out[s].writeInt(TRAIN);
+					writeWeights(out[s], weights, b);
+					out[s].flush();
+				}
+				
+				for( int s = 0; s < numShards; s++ ){
+					shardB[s] = readWeights(in[s], shardWeights[s]);
+				}
+				
+				mix(shardWeights, shardB);
+			}
+			
+			for( int s = 0; s < numShards; s++ ){
+				out[s].writeInt(STOP);
+				out[s].flush();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Parameter mixing workers failed", e);
+		} finally {
+			for( int s = 0; s < numShards; s++ ){
+				try{
+					if( sockets[s] != null ){
+						sockets[s].close();
+					}
+				} catch (IOException e) {
+					// the worker's already gone
+				}
+				
+				if( workers[s] != null ){
+					try{
+						workers[s].waitFor();
+					} catch (InterruptedException e) {
+						workers[s].destroy();
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Set the weights to the average of the shards' weights (the end of an iteration).
+	 * The shards are added up in order, so the result doesn't depend on which shard
+	 * finished first.
+	 * 
+	 * @param shardWeights
+	 * @param shardB
+	 */
+	private void mix(double[][] shardWeights, double[] shardB){
+		Arrays.fill(weights, 0);
+		b = 0;
+		
+		for( int s = 0; s < numShards; s++ ){
+			for( int j = 0; j < weights.length; j++ ){
+				weights[j] += shardWeights[s][j];
+			}
+			
+			b += shardB[s];
+		}
+		
+		for( int j = 0; j < weights.length; j++ ){
+			weights[j] /= numShards;
+		}
+		
+		b /= numShards;
+		takeSnapshot(weights, b);
+	}
+	
+	private static void writeWeights(DataOutputStream out, double[] weights, double b) throws IOException {
+		for( double w: weights ){
+			out.writeDouble(w);
+		}
+		
+		out.writeDouble(b);
+	}
+	
+	/**
+	 * @param in
+	 * @param weights where to put the weights
+	 * @return the intersect
+	 */
+	private static double readWeights(DataInputStream in, double[] weights) throws IOException {
+		for( int j = 0; j < weights.length; j++ ){
+			weights[j] = in.readDouble();
+		}
+		
+		return in.readDouble();
+	}
+	
+	/**
+	 * Run a worker: connect to the trainer on the loopback port given as the only
+	 * argument, receive a shard and then train on it whenever the trainer sends
+	 * weights until told to stop
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		int port = Integer.parseInt(args[0]);
+		
+		try( Socket socket = new Socket(InetAddress.getLoopbackAddress(), port) ){
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Shard shard = Shard.read(in);
+			double[] weights = new double[shard.numFeatures];
+			
+			while( in.readInt() == TRAIN ){
+				double b = readWeights(in, weights);
+				b = shard.train(weights, b);
+				writeWeights(out, weights, b);
+				out.flush();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Parameter mixing worker failed", e);
+		}
+	}
+	
+	/**
+	 * One shard of the training data and the random number generator it's shuffled with
+	 */
+	private static class Shard {
+		private final CompactExample[] examples;
+		private final int numFeatures;
+		private final long seed;
+		private final Random rand;
+		
+		public Shard(CompactExample[] examples, int numFeatures, long seed){
+			this.examples = examples;
+			this.numFeatures = numFeatures;
+			this.seed = seed;
+			rand = new Random(seed);
+		}
+		
+		/**
+		 * Run one perceptron iteration over the shard
+		 * 
+		 * @param weights the starting weights, which are updated
+		 * @param b the starting intersect
+		 * @return the updated intersect
+		 */
+		public double train(double[] weights, double b){
+			Collections.shuffle(Arrays.asList(examples), rand);
+			
+			for( CompactExample e: examples ){
+				double label = e.getLabel();
+				
+				if( getPrediction(e.dot(weights) + b) != label ){
+					int[] indices = e.getIndices();
+					double[] values = e.getValues();
+					
+					for( int i = 0; i < indices.length; i++ ){
+						weights[indices[i]] += values[i]*label;
+					}
+					
+					b += label;
+				}
+			}
+			
+			return b;
+		}
+		
+		/**
+		 * Send the shard to a worker
+		 * 
+		 * @param out
+		 * @throws IOException
+		 */
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(numFeatures);
+			out.writeLong(seed);
+			out.writeInt(examples.length);
+			
+			for( CompactExample e: examples ){
+				int[] indices = e.getIndices();
+				double[] values = e.getValues();
+				out.writeInt(indices.length);
+				
+				for( int i = 0; i < indices.length; i++ ){
+					out.writeInt(indices[i]);
+					out.writeDouble(values[i]);
+				}
+				
+				out.writeDouble(e.getLabel());
+			}
+			
+			out.flush();
+		}
+		
+		/**
+		 * Receive a shard from the trainer
+		 * 
+		 * @param in
+		 * @return the shard
+		 * @throws IOException
+		 */
+		public static Shard read(DataInputStream in) throws IOException {
+			int numFeatures = in.readInt();
+			long seed = in.readLong();
+			CompactExample[] examples = new CompactExample[in.readInt()];
+			
+			for( int k = 0; k < examples.length; k++ ){
+				int[] indices = new int[in.readInt()];
+				double[] values = new double[indices.length];
+				
+				for( int i = 0; i < indices.length; i++ ){
+					indices[i] = in.readInt();
+					values[i] = in.readDouble();
+				}
+				
+				examples[k] = new CompactExample(indices, values, in.readDouble());
+			}
+			
+			return new Shard(examples, numFeatures, seed);
+		}
+	}
+}
@@ -1,90 +1,356 @@
 package ml.classifiers;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.IntStream;
 
+import ml.data.CompactExample;
 import ml.data.DataSet;
 import ml.data.Example;
+import ml.data.FeatureIndexer;
+import ml.data.ShuffleBuffer;
 
 /**
  * Basic perceptron classifier
  * 
+ * Training can be split across several threads (see setNumThreads).  Each iteration
+ * the shuffled data is split into one disjoint partition per thread and the threads
+ * update the shared weights without any locking (Hogwild).  Since an example only
+ * touches its non-zero features, on sparse data two threads rarely write the same
+ * weight and the occasional lost update doesn't hurt.  Alternatively, in deterministic
+ * mode each thread keeps its updates in its own buffer and the average of the buffers
+ * is added to the weights at the end of the iteration, so the result only depends on
+ * the seed.  (Adding up the buffers overshoots, since all of the threads correct the
+ * same kinds of mistakes.)
+ * 
+ * The perceptron can also be trained on examples that don't fit in memory by streaming
+ * them from an Iterable, e.g. a FileExampleSource (see train(Iterable)).
+ * 
+ * To tune the number of iterations without retraining, train(DataSet) can keep a copy
+ * of the weights after every iteration (see setKeepSnapshots and classifyBySnapshot).
+ * 
+ * Training stops early if an iteration doesn't make any mistakes, since then none of
+ * the remaining iterations would change the weights either.
+ * 
  * @author dkauchak
- *
+ * 
  */
 public class PerceptronClassifier implements Classifier {
-	protected HashMap<Integer, Double> weights; // the feature weights
+	protected FeatureIndexer indexer; // maps feature indices to positions in weights
+	protected double[] weights; // the feature weights, indexed by dense feature index
 	protected double b = 0; // the intersect weight
 	
 	protected int iterations = 10;
+	protected int numThreads = 1;
+	protected boolean deterministic = false;
+	protected Random rand = new Random();
+	protected int shuffleBufferSize = 10000;
+	protected boolean keepSnapshots = false;
+	protected ArrayList<double[]> snapshots = new ArrayList<double[]>(); // weights after each iteration, intersect at the end
+	protected int iterationsRun = 0;
+	
+	/**
+	 * Initialize the weights (all 0) and the intersect value for the features
+	 * in data
+	 * 
+	 * @param data
+	 */
+	protected void initializeWeights(DataSet data){
+		indexer = new FeatureIndexer(data);
+		weights = new double[indexer.size()];
+		b = 0;
+		snapshots = new ArrayList<double[]>();
+	}
+	
+	/**
+	 * Set the number of iterations the perceptron should run during training
+	 * 
+	 * @param iterations
+	 */
+	public void setIterations(int iterations){
+		this.iterations = iterations;
+	}
+	
+	/**
+	 * Set the number of threads to train with (default 1).  Not used by
+	 * AveragePerceptronClassifier, which always trains sequentially.
+	 * 
+	 * @param numThreads
+	 */
+	public void setNumThreads(int numThreads){
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Set whether training with multiple threads should be deterministic (default false).
+	 * If true, the threads buffer their updates until the end of each iteration, when
+	 * the average of the buffers is added to the weights, rather than racing on the
+	 * shared weights.
+	 * 
+	 * @param deterministic
+	 */
+	public void setDeterministic(boolean deterministic){
+		this.deterministic = deterministic;
+	}
+	
+	/**
+	 * Set the seed used to shuffle the data each iteration
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed){
+		rand = new Random(seed);
+	}
+	
+	/**
+	 * Set the number of examples held in memory to shuffle the data when training
+	 * from a stream (default 10000)
+	 * 
+	 * @param shuffleBufferSize
+	 */
+	public void setShuffleBufferSize(int shuffleBufferSize){
+		this.shuffleBufferSize = shuffleBufferSize;
+	}
+	
+	/**
+	 * Set whether train(DataSet) should keep a copy of the weights after each iteration
+	 * (default false).  Then a single training run can be evaluated with every number of
+	 * iterations up to iterations (see classifyBySnapshot).
+	 * 
+	 * @param keepSnapshots
+	 */
+	public void setKeepSnapshots(boolean keepSnapshots){
+		this.keepSnapshots = keepSnapshots;
+	}
+	
+	public void train(DataSet data) {
+		initializeWeights(data);
+		
+		CompactExample[] training = indexer.compact(data.getData()).toArray(new CompactExample[0]);
+		List<CompactExample> shuffled = Arrays.asList(training);
 		
+		for( iterationsRun = 0; iterationsRun < iterations; ){
+			Collections.shuffle(shuffled, rand);
+			int mistakes = 0;
+			
+			if( numThreads > 1 ){
+				mistakes = trainParallel(training);
+			}else{
+				for( CompactExample e: training ){
+					if( update(e) ){
+						mistakes++;
+					}
+				}
+			}
+			
+			iterationsRun++;
+			takeSnapshot(weights, b);
+			
+			if( mistakes == 0 ){
+				// converged, so the weights would be the same after all of the remaining iterations
+				for( int it = iterationsRun; it < iterations; it++ ){
+					takeSnapshot(weights, b);
+				}
+				
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of iterations the last call to train actually ran, which is less
+	 * than the number of iterations if it stopped early
+	 */
+	public int getIterationsRun(){
+		return iterationsRun;
+	}
+	
 	/**
-	 * Get a weight vector over the set of features with each weight
-	 * set to 0
+	 * If snapshots are being kept, save a copy of w and inputB as the weights
+	 * after the next iteration
 	 * 
-	 * @param features the set of features to learn over
-	 * @return
+	 * @param w
+	 * @param inputB
+	 */
+	protected void takeSnapshot(double[] w, double inputB){
+		if( keepSnapshots ){
+			double[] snapshot = Arrays.copyOf(w, w.length+1);
+			snapshot[w.length] = inputB;
+			snapshots.add(snapshot);
+		}
+	}
+	
+	/**
+	 * @return the number of snapshots kept by the last call to train(DataSet)
 	 */
-	protected HashMap<Integer, Double> getZeroWeights(Set<Integer> features){
-		HashMap<Integer, Double> temp = new HashMap<Integer, Double>();
+	public int getNumSnapshots(){
+		return snapshots.size();
+	}
+	
+	/**
+	 * Classify the example with the weights after each iteration of the last call to
+	 * train(DataSet).  Requires setKeepSnapshots(true) before training.
+	 * 
+	 * @param example
+	 * @return the predictions, where entry i is the prediction after i+1 iterations
+	 */
+	public double[] classifyBySnapshot(Example example){
+		CompactExample e = indexer.compact(example);
+		double[] predictions = new double[snapshots.size()];
 		
-		for( Integer f: features){
-			temp.put(f, 0.0);
+		for( int i = 0; i < predictions.length; i++ ){
+			double[] snapshot = snapshots.get(i);
+			predictions[i] = getPrediction(e.dot(snapshot) + snapshot[snapshot.length-1]);
 		}
 		
-		return temp;
+		return predictions;
 	}
 	
 	/**
-	 * Initialize the weights and the intersect value
+	 * Train on the examples from source without keeping them all in memory.  Each
+	 * iteration iterates over source again (so it should re-read the data each time
+	 * it's iterated over), compacts the examples, adding features as they're seen, and
+	 * shuffles them with a ShuffleBuffer of shuffleBufferSize examples.  Always trains
+	 * with a single thread and doesn't keep snapshots.
 	 * 
-	 * @param features
+	 * @param source
 	 */
-	protected void initializeWeights(Set<Integer> features){
-		weights = getZeroWeights(features);
+	public void train(Iterable<Example> source){
+		indexer = new FeatureIndexer();
+		weights = new double[0];
 		b = 0;
+		snapshots = new ArrayList<double[]>();
+		
+		for( iterationsRun = 0; iterationsRun < iterations; ){
+			Iterator<CompactExample> examples = new ShuffleBuffer<CompactExample>(indexer.addAndCompact(source.iterator()), shuffleBufferSize, rand);
+			int mistakes = 0;
+			
+			while( examples.hasNext() ){
+				if( update(nextStreamed(examples)) ){
+					mistakes++;
+				}
+			}
+			
+			iterationsRun++;
+			
+			if( mistakes == 0 ){
+				break;
+			}
+		}
+		
+		weights = Arrays.copyOf(weights, indexer.size());
 	}
 	
 	/**
-	 * Set the number of iterations the perceptron should run during training
+	 * Get the next example from a stream, making room in weights for any features that
+	 * have been added to the indexer.  The weights may have more room than there are
+	 * features.
 	 * 
-	 * @param iterations
+	 * @param examples
+	 * @return the next example
 	 */
-	public void setIterations(int iterations){
-		this.iterations = iterations;
+	protected CompactExample nextStreamed(Iterator<CompactExample> examples){
+		CompactExample e = examples.next();
+		
+		if( indexer.size() > weights.length ){
+			// grow by doubling so that adding features is amortized constant time
+			weights = Arrays.copyOf(weights, Math.max(indexer.size(), 2*weights.length));
+		}
+		
+		return e;
 	}
 	
-	public void train(DataSet data) {
-		initializeWeights(data.getAllFeatureIndices());
+	/**
+	 * Update the weights if the current weights misclassify e
+	 * 
+	 * @param e
+	 * @return whether e was misclassified
+	 */
+	private boolean update(CompactExample e){
+		boolean mistake = getPrediction(e) != e.getLabel();
+		
+		if( mistake ){
+			double label = e.getLabel();
+			int[] indices = e.getIndices();
+			double[] values = e.getValues();
+			
+			// update the weights (only the non-zero features change)
+			for( int i = 0; i < indices.length; i++ ){
+				weights[indices[i]] += values[i]*label;
+			}
+			
+			// update b
+			b += label;
+		}
 		
-		ArrayList<Example> training = (ArrayList<Example>)data.getData().clone();
+		return mistake;
+	}
+	
+	/**
+	 * One iteration over training split into a partition per thread
+	 * 
+	 * @param training the (shuffled) training examples
+	 * @return the number of mistakes made
+	 */
+	private int trainParallel(CompactExample[] training){
+		int n = training.length;
+		double[][] buffers = new double[numThreads][];
+		double[] bDeltas = new double[numThreads];
+		int[] mistakes = new int[numThreads];
 		
-		for( int it = 0; it < iterations; it++ ){
-			Collections.shuffle(training);
+		IntStream.range(0, numThreads).parallel().forEach(t -> {
+			// in deterministic mode updates go into this thread's buffer, otherwise straight into the weights
+			double[] buffer = deterministic ? new double[weights.length] : null;
+			double[] target = deterministic ? buffer : weights;
+			double bDelta = 0;
 			
-			for( Example e: training ){
-				if( getPrediction(e) != e.getLabel() ){
-					double label = e.getLabel();
+			for( int i = (int)((long)n*t/numThreads); i < (int)((long)n*(t+1)/numThreads); i++ ){
+				CompactExample e = training[i];
+				double distance = e.dot(weights) + b + bDelta;
+				
+				if( buffer != null ){
+					distance += e.dot(buffer);
+				}
+				
+				double label = e.getLabel();
+				
+				if( getPrediction(distance) != label ){
+					int[] indices = e.getIndices();
+					double[] values = e.getValues();
 					
-					// update the weights
-					//for( Integer featureIndex: weights.keySet() ){
-					for( Integer featureIndex: e.getFeatureSet() ){
-						double oldWeight = weights.get(featureIndex);
-						double featureValue = e.getFeature(featureIndex);
-						
-						weights.put(featureIndex, oldWeight + featureValue*label);
+					for( int j = 0; j < indices.length; j++ ){
+						target[indices[j]] += values[j]*label;
 					}
 					
-					// update b
-					b += label;					
+					bDelta += label;
+					mistakes[t]++;
 				}
 			}
+			
+			buffers[t] = buffer;
+			bDeltas[t] = bDelta;
+		});
+		
+		// merge in thread order so that deterministic runs add up the same way every time
+		double scale = deterministic ? 1.0/numThreads : 1.0;
+		
+		for( int t = 0; t < numThreads; t++ ){
+			if( buffers[t] != null ){
+				for( int j = 0; j < weights.length; j++ ){
+					weights[j] += scale*buffers[t][j];
+				}
+			}
+			
+			b += scale*bDeltas[t];
 		}
+		
+		return IntStream.of(mistakes).sum();
 	}
-
+	
 	@Override
 	public double classify(Example example) {
 		return getPrediction(example);
@@ -94,8 +360,8 @@ public class PerceptronClassifier implements Classifier {
 	public double confidence(Example example) {
 		return Math.abs(getDistanceFromHyperplane(example, weights, b));
 	}
-
-		
+	
+	
 	/**
 	 * Get the prediction from the current set of weights on this example
 	 * 
@@ -103,36 +369,54 @@ public class PerceptronClassifier implements Classifier {
 	 * @return
 	 */
 	protected double getPrediction(Example e){
-		return getPrediction(e, weights, b);
+		return getPrediction(getDistanceFromHyperplane(e, weights, b));
+	}
+	
+	/**
+	 * Get the prediction from the current set of weights on this (training) example
+	 * 
+	 * @param e the example to predict
+	 * @return
+	 */
+	protected double getPrediction(CompactExample e){
+		return getPrediction(e.dot(weights) + b);
 	}
 	
 	/**
-	 * Get the prediction from the on this example from using weights w and inputB
+	 * Get the prediction for an example that is distance from the hyperplane
 	 * 
-	 * @param e example to predict
-	 * @param w the set of weights to use
-	 * @param inputB the b value to use
+	 * @param distance
 	 * @return the prediction
 	 */
-	protected static double getPrediction(Example e, HashMap<Integer, Double> w, double inputB){
-		double sum = getDistanceFromHyperplane(e,w,inputB);
-
-		if( sum > 0 ){
+	protected static double getPrediction(double distance){
+		if( distance > 0 ){
 			return 1.0;
-		}else if( sum < 0 ){
+		}else if( distance < 0 ){
 			return -1.0;
 		}else{
 			return 0;
 		}
 	}
 	
-	protected static double getDistanceFromHyperplane(Example e, HashMap<Integer, Double> w, double inputB){
+	/**
+	 * Get the distance of e from the hyperplane given by w and inputB.  Features
+	 * that weren't seen during training are ignored.
+	 * 
+	 * @param e
+	 * @param w the weights, indexed by dense feature index
+	 * @param inputB
+	 * @return the distance
+	 */
+	protected double getDistanceFromHyperplane(Example e, double[] w, double inputB){
 		double sum = inputB;
 		
-		//for(Integer featureIndex: w.keySet()){
 		// only need to iterate over non-zero features
 		for( Integer featureIndex: e.getFeatureSet()){
-			sum += w.get(featureIndex) * e.getFeature(featureIndex);
+			int index = indexer.getIndex(featureIndex);
+			
+			if( index != -1 ){
+				sum += w[index] * e.getFeature(featureIndex);
+			}
 		}
 		
 		return sum;
@@ -141,12 +425,9 @@ public class PerceptronClassifier implements Classifier {
 	public String toString(){
 		StringBuffer buffer = new StringBuffer();
 		
-		ArrayList<Integer> temp = new ArrayList<Integer>(weights.keySet());
-		Collections.sort(temp);
-		
-		for(Integer index: temp){
-			double roundOff = (double) Math.round(weights.get(index) * 10000) / 10000;
-			buffer.append(index + ":" + roundOff + " ");
+		for( int i: indexer.getDenseIndicesInFeatureOrder() ){
+			double roundOff = (double) Math.round(weights[i] * 10000) / 10000;
+			buffer.append(indexer.getFeatureIndex(i) + ":" + roundOff + " ");
 		}
 		
 		return buffer.substring(0, buffer.length()-1);
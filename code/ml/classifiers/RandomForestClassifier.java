@@ -0,0 +1,167 @@
+package ml.classifiers;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import ml.data.DataSet;
+import ml.data.Example;
+
+/**
+ * Random forest of binary decision trees.  Each tree is trained on a bootstrap sample
+ * of the data and only considers a random subset of the features (by default the
+ * square root of the number of features) at each node.  This makes the trees less
+ * alike than bagged decision trees and much cheaper to build.
+ * 
+ * All of the trees share one copy of the data stored by column and presorted (see
+ * LevelWiseTreeBuilder), and are trained in parallel.
+ * 
+ * @author huey
+ * 
+ */
+public class RandomForestClassifier implements Classifier {
+	private int numTrees = 100;
+	private int featuresPerNode = -1; // -1 for the square root of the number of features
+	private int depthMax = Integer.MAX_VALUE;
+	private boolean parallel = true;
+	private Random rand = new Random();
+	
+	private FlatDecisionTree[] trees;
+	
+	public RandomForestClassifier(){
+	}
+	
+	/**
+	 * Create an already trained forest from its trees (e.g. ones loaded by TreeModelIO)
+	 * 
+	 * @param trees
+	 */
+	RandomForestClassifier(FlatDecisionTree[] trees){
+		this.trees = trees;
+		numTrees = trees.length;
+	}
+	
+	@Override
+	public void train(DataSet data) {
+		int size = data.getData().size();
+		
+		if( size == 0 ){
+			throw new RuntimeException("Tried to train without any data");
+		}
+		
+		LevelWiseTreeBuilder builder = new LevelWiseTreeBuilder(data, parallel);
+		int numFeatures = data.getAllFeatureIndices().size();
+		int numCandidates = featuresPerNode > 0 ? featuresPerNode : Math.max(1, (int)Math.round(Math.sqrt(numFeatures)));
+		
+		// pick the seeds up front so the forest doesn't depend on the order the trees are built in
+		long[] seeds = new long[numTrees];
+		
+		for( int i = 0; i < numTrees; i++ ){
+			seeds[i] = rand.nextLong();
+		}
+		
+		trees = new FlatDecisionTree[numTrees];
+		IntStream range = IntStream.range(0, numTrees);
+		
+		if( parallel ){
+			range = range.parallel();
+		}
+		
+		range.forEach(i -> {
+			Random treeRand = new Random(seeds[i]);
+			
+			// bootstrap sample
+			int[] rowCount = new int[size];
+			
+			for( int j = 0; j < size; j++ ){
+				rowCount[treeRand.nextInt(size)]++;
+			}
+			
+			trees[i] = new FlatDecisionTree(builder.build(depthMax, rowCount, numCandidates, treeRand));
+		});
+	}
+	
+	/**
+	 * Set the number of trees in the forest (default 100)
+	 * 
+	 * @param numTrees
+	 */
+	public void setNumTrees(int numTrees){
+		this.numTrees = numTrees;
+	}
+	
+	/**
+	 * Set the number of features considered for splitting at each node.  The
+	 * default (or any value <= 0) is the square root of the number of features.
+	 * 
+	 * @param featuresPerNode
+	 */
+	public void setFeaturesPerNode(int featuresPerNode){
+		this.featuresPerNode = featuresPerNode;
+	}
+	
+	/**
+	 * Set the maximum depth of the trees
+	 * 
+	 * @param depthMax
+	 */
+	public void setDepthLimit(int depthMax){
+		this.depthMax = depthMax;
+	}
+	
+	/**
+	 * Set whether the trees should be trained in parallel (default true)
+	 * 
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel){
+		this.parallel = parallel;
+	}
+	
+	/**
+	 * Set the seed for the random samples of the data and features
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed){
+		rand = new Random(seed);
+	}
+	
+	/**
+	 * Get the trained trees.  Should only be called *after* train.
+	 * 
+	 * @return the trees
+	 */
+	public FlatDecisionTree[] getTrees(){
+		return trees;
+	}
+	
+	@Override
+	public double classify(Example example) {
+		return positiveVotes(example)*2 >= trees.length ? BinaryDecisionTreeClassifier.POSITIVE_LABEL : BinaryDecisionTreeClassifier.NEGATIVE_LABEL;
+	}
+	
+	/**
+	 * The confidence is the fraction of the trees that voted for the predicted label
+	 */
+	@Override
+	public double confidence(Example example) {
+		int positive = positiveVotes(example);
+		return Math.max(positive, trees.length - positive)/(double)trees.length;
+	}
+	
+	/**
+	 * @param example
+	 * @return the number of trees that predict the positive label
+	 */
+	private int positiveVotes(Example example){
+		int positive = 0;
+		
+		for( FlatDecisionTree tree: trees ){
+			if( tree.prediction(tree.findLeaf(example)) == BinaryDecisionTreeClassifier.POSITIVE_LABEL ){
+				positive++;
+			}
+		}
+		
+		return positive;
+	}
+}
@@ -0,0 +1,349 @@
+package ml.classifiers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compiles a FlatDecisionTree into a new (hidden) class implementing CompiledTree
+ * whose findLeaf method is the tree written out as nested if/else statements,
+ * with the feature indices, thresholds and leaf numbers as constants.  This lets
+ * the JIT compile the tree into straight-line comparisons rather than loads from
+ * the tree arrays.
+ * 
+ * The class file is written by hand (class file version 49, which doesn't need
+ * stack map frames) since the JDK we target doesn't have a class file API.  Large
+ * subtrees are split out into their own methods to stay under the size limit on a
+ * method's code.
+ * 
+ * A class's constant pool can only hold 65535 entries, and every distinct threshold
+ * takes two of them.  Trees that need more than that aren't compiled: compile warns
+ * and returns a CompiledTree that just walks the FlatDecisionTree instead, which makes
+ * exactly the same predictions.
+ * 
+ * @author huey
+ * 
+ */
+class TreeCompiler {
+	// split out subtrees with more nodes than this into their own method
+	private static final int MAX_INLINED_NODES = 1500;
+	
+	private static final int MAX_POOL_SIZE = 65535; // the constant pool count is an unsigned short
+	
+	private static final String CLASS_NAME = "ml/classifiers/GeneratedTree";
+	
+	// the few opcodes we need
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int DALOAD = 0x31;
+	private static final int DCMPG = 0x98;
+	private static final int IFGT = 0x9d;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+	
+	private FlatDecisionTree tree;
+	private int[] subtreeSize;
+	private ConstantPool pool = new ConstantPool();
+	private ArrayList<Integer> methodRoots = new ArrayList<Integer>(); // the node each method starts at
+	
+	private TreeCompiler(FlatDecisionTree tree){
+		this.tree = tree;
+		
+		// children always come after their parents, so go backwards
+		subtreeSize = new int[tree.size()];
+		
+		for( int node = tree.size()-1; node >= 0; node-- ){
+			subtreeSize[node] = 1;
+			
+			if( !tree.isLeaf(node) ){
+				subtreeSize[node] += subtreeSize[tree.getLeft(node)] + subtreeSize[tree.getRight(node)];
+			}
+		}
+	}
+	
+	/**
+	 * Compile tree into a new class
+	 * 
+	 * @param tree
+	 * @return an instance of the compiled class
+	 */
+	public static CompiledTree compile(FlatDecisionTree tree){
+		byte[] classBytes;
+		
+		try {
+			classBytes = new TreeCompiler(tree).generateClass();
+		} catch (ConstantPoolFullException e) {
+			System.err.println("Warning: decision tree with " + tree.size() + " nodes has too many constants to compile, "
+					+ "so it will be walked instead");
+			return tree::findLeaf;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to compile decision tree", e);
+		}
+		
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+			return (CompiledTree)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable e) {
+			throw new RuntimeException("Unable to compile decision tree", e);
+		}
+	}
+	
+	/**
+	 * @return the class file for the tree
+	 */
+	private byte[] generateClass() throws IOException {
+		int thisClass = pool.classRef(CLASS_NAME);
+		int superClass = pool.classRef("java/lang/Object");
+		int treeInterface = pool.classRef("ml/classifiers/CompiledTree");
+		int code = pool.utf8("Code");
+		
+		// generate all of the methods first so the constant pool is complete
+		ByteArrayOutputStream methods = new ByteArrayOutputStream();
+		DataOutputStream methodsOut = new DataOutputStream(methods);
+		int methodCount = 0;
+		
+		// constructor: just call Object's constructor
+		ByteArrayOutputStream init = new ByteArrayOutputStream();
+		init.write(ALOAD_0);
+		init.write(INVOKESPECIAL);
+		writeShort(init, pool.methodRef("java/lang/Object", "<init>", "()V"));
+		init.write(RETURN);
+		writeMethod(methodsOut, 0x0001, "<init>", "()V", code, 1, 1, init.toByteArray());
+		methodCount++;
+		
+		// findLeaf: pass the row on to the method for the root
+		ByteArrayOutputStream findLeaf = new ByteArrayOutputStream();
+		findLeaf.write(ALOAD_1);
+		findLeaf.write(INVOKESTATIC);
+		writeShort(findLeaf, nodeMethod(0));
+		findLeaf.write(IRETURN);
+		writeMethod(methodsOut, 0x0001, "findLeaf", "([D)I", code, 1, 2, findLeaf.toByteArray());
+		methodCount++;
+		
+		// one private static method per split out subtree (more may be added as we go)
+		for( int i = 0; i < methodRoots.size(); i++ ){
+			int root = methodRoots.get(i);
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			writeNode(body, root, root);
+			writeMethod(methodsOut, 0x000a, "node" + root, "([D)I", code, 4, 1, body.toByteArray());
+			methodCount++;
+		}
+		
+		ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(classFile);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0); // minor version
+		out.writeShort(49); // major version
+		pool.write(out);
+		out.writeShort(0x0030); // final, super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1); // interfaces
+		out.writeShort(treeInterface);
+		out.writeShort(0); // fields
+		out.writeShort(methodCount);
+		out.write(methods.toByteArray());
+		out.writeShort(0); // attributes
+		out.flush();
+		
+		return classFile.toByteArray();
+	}
+	
+	/**
+	 * Write the code for the subtree at node.  The row is in local variable 0.
+	 * 
+	 * @param out
+	 * @param node
+	 * @param methodRoot the node the method being written starts at
+	 */
+	private void writeNode(ByteArrayOutputStream out, int node, int methodRoot){
+		if( node != methodRoot && subtreeSize[node] > MAX_INLINED_NODES ){
+			// too big, call out to its own method
+			out.write(ALOAD_0);
+			out.write(INVOKESTATIC);
+			writeShort(out, nodeMethod(node));
+			out.write(IRETURN);
+		}else if( tree.isLeaf(node) ){
+			writeInt(out, node);
+			out.write(IRETURN);
+		}else{
+			// if( row[feature] <= threshold ) left else right.  dcmpg gives 1 for NaN
+			// so, just like the <= comparison, NaN goes right.
+			out.write(ALOAD_0);
+			writeInt(out, tree.getFeatureIndex(node));
+			out.write(DALOAD);
+			out.write(LDC2_W);
+			writeShort(out, pool.doubleConstant(tree.getThreshold(node)));
+			out.write(DCMPG);
+			
+			ByteArrayOutputStream left = new ByteArrayOutputStream();
+			writeNode(left, tree.getLeft(node), methodRoot);
+			
+			// jump past the left code (the offset is from the start of the ifgt)
+			out.write(IFGT);
+			writeShort(out, 3 + left.size());
+			out.write(left.toByteArray(), 0, left.size());
+			
+			writeNode(out, tree.getRight(node), methodRoot);
+		}
+	}
+	
+	/**
+	 * @param node
+	 * @return the constant pool entry for the method for the subtree at node
+	 */
+	private int nodeMethod(int node){
+		if( !methodRoots.contains(node) ){
+			methodRoots.add(node);
+		}
+		
+		return pool.methodRef(CLASS_NAME, "node" + node, "([D)I");
+	}
+	
+	/**
+	 * Push an int constant onto the stack
+	 */
+	private void writeInt(ByteArrayOutputStream out, int value){
+		if( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ){
+			out.write(SIPUSH);
+			writeShort(out, value);
+		}else{
+			out.write(LDC_W);
+			writeShort(out, pool.intConstant(value));
+		}
+	}
+	
+	private static void writeShort(ByteArrayOutputStream out, int value){
+		out.write((value >> 8) & 0xff);
+		out.write(value & 0xff);
+	}
+	
+	private void writeMethod(DataOutputStream out, int access, String name, String descriptor,
+			int codeAttribute, int maxStack, int maxLocals, byte[] code) throws IOException {
+		if( code.length > 65535 ){
+			throw new RuntimeException("Generated method too large: " + code.length);
+		}
+		
+		out.writeShort(access);
+		out.writeShort(pool.utf8(name));
+		out.writeShort(pool.utf8(descriptor));
+		out.writeShort(1); // attributes
+		
+		out.writeShort(codeAttribute);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	}
+	
+	/**
+	 * The constant pool for the class, with each distinct constant added once
+	 */
+	private static class ConstantPool {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+		private int next = 1;
+		
+		public int utf8(String value){
+			return add("U" + value, 1, () -> out.writeUTF(value));
+		}
+		
+		public int classRef(String name){
+			int nameIndex = utf8(name);
+			return add("C" + name, 1, () -> {
+				out.writeByte(7);
+				out.writeShort(nameIndex);
+			});
+		}
+		
+		public int methodRef(String owner, String name, String descriptor){
+			int ownerIndex = classRef(owner);
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			int nameAndType = add("N" + name + ":" + descriptor, 1, () -> {
+				out.writeByte(12);
+				out.writeShort(nameIndex);
+				out.writeShort(descriptorIndex);
+			});
+			
+			return add("M" + owner + "." + name + ":" + descriptor, 1, () -> {
+				out.writeByte(10);
+				out.writeShort(ownerIndex);
+				out.writeShort(nameAndType);
+			});
+		}
+		
+		public int intConstant(int value){
+			return add("I" + value, 1, () -> {
+				out.writeByte(3);
+				out.writeInt(value);
+			});
+		}
+		
+		public int doubleConstant(double value){
+			// key on the bits so that e.g. 0.0 and -0.0 stay different
+			long bits = Double.doubleToRawLongBits(value);
+			return add("D" + bits, 2, () -> {
+				out.writeByte(6);
+				out.writeLong(bits);
+			});
+		}
+		
+		public void write(DataOutputStream classOut) throws IOException {
+			out.flush();
+			classOut.writeShort(next);
+			classOut.write(bytes.toByteArray());
+		}
+		
+		private int add(String key, int slots, Entry entry){
+			Integer index = entries.get(key);
+			
+			if( index == null ){
+				if( next + slots > MAX_POOL_SIZE ){
+					throw new ConstantPoolFullException();
+				}
+				
+				// utf8 entries are written with a tag in front of writeUTF
+				try {
+					if( key.charAt(0) == 'U' ){
+						out.writeByte(1);
+					}
+					
+					entry.write();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				
+				index = next;
+				next += slots;
+				entries.put(key, index);
+			}
+			
+			return index;
+		}
+		
+		private interface Entry {
+			public void write() throws IOException;
+		}
+	}
+	
+	/**
+	 * Thrown when a tree needs more constants than fit in a class's constant pool
+	 */
+	private static class ConstantPoolFullException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+}
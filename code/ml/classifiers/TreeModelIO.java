@@ -0,0 +1,227 @@
+package ml.classifiers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves trained tree models to a compact binary file and loads them back.
+ * 
+ * Supported models are BinaryDecisionTreeClassifier (and CompiledTreeClassifier, which
+ * is saved as the tree it was compiled from), BaggingClassifier when all of its members
+ * are trees, RandomForestClassifier and GradientBoostingClassifier.
+ * 
+ * The file is big-endian and laid out as:
+ * 
+ *   int magic, int version, int model type
+ *   model header: nothing for a single tree, int number of trees for the ensembles, and
+ *     for gradient boosting also double base score, int number of features, int[] features
+ *   each tree: int number of nodes n, then its arrays in breadth first order: int[n] feature
+ *     (FlatDecisionTree.LEAF for leaves), double[n] threshold, int[n] left, int[n] right,
+ *     double[n] prediction, double[n] confidence
+ * 
+ * Files are loaded by memory mapping them and bulk copying the arrays out, so loading
+ * doesn't parse anything node by node.
+ * 
+ * @author huey
+ * 
+ */
+public class TreeModelIO {
+	public static final int MAGIC = 0x54524545; // "TREE"
+	public static final int VERSION = 1;
+	
+	// model types
+	private static final int DECISION_TREE = 0;
+	private static final int BAGGED_TREES = 1;
+	private static final int RANDOM_FOREST = 2;
+	private static final int GRADIENT_BOOSTING = 3;
+	
+	/**
+	 * Save a trained model.  The model is checked (and its trees collected) before the
+	 * file is opened, so an unsupported model doesn't leave a partially written file.
+	 * 
+	 * @param model
+	 * @param filename
+	 */
+	public static void save(Classifier model, String filename){
+		int type;
+		FlatDecisionTree[] trees;
+		
+		if( model instanceof BinaryDecisionTreeClassifier || model instanceof CompiledTreeClassifier ){
+			type = DECISION_TREE;
+			trees = new FlatDecisionTree[]{getFlatTree(model)};
+		}else if( model instanceof BaggingClassifier ){
+			BaggingClassifier bag = (BaggingClassifier)model;
+			type = BAGGED_TREES;
+			trees = new FlatDecisionTree[bag.getNumClassifiers()];
+			
+			for( int i = 0; i < trees.length; i++ ){
+				trees[i] = getFlatTree(bag.getClassifier(i));
+			}
+		}else if( model instanceof RandomForestClassifier ){
+			type = RANDOM_FOREST;
+			trees = ((RandomForestClassifier)model).getTrees();
+		}else if( model instanceof GradientBoostingClassifier ){
+			type = GRADIENT_BOOSTING;
+			trees = ((GradientBoostingClassifier)model).getTrees();
+		}else{
+			throw new RuntimeException("Can't save model of type " + model.getClass().getName());
+		}
+		
+		try( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename))) ){
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(type);
+			
+			if( type != DECISION_TREE ){
+				out.writeInt(trees.length);
+			}
+			
+			if( type == GRADIENT_BOOSTING ){
+				GradientBoostingClassifier boosted = (GradientBoostingClassifier)model;
+				int[] features = boosted.getFeatureIndices();
+				out.writeDouble(boosted.getBaseScore());
+				out.writeInt(features.length);
+				
+				for( int f: features ){
+					out.writeInt(f);
+				}
+			}
+			
+			for( FlatDecisionTree tree: trees ){
+				writeTree(out, tree);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to save model to " + filename, e);
+		}
+	}
+	
+	/**
+	 * Load a model saved with save
+	 * 
+	 * @param filename
+	 * @return the model, ready to classify
+	 */
+	public static Classifier load(String filename){
+		try( FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ) ){
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if( in.getInt() != MAGIC ){
+				throw new RuntimeException(filename + " is not a saved tree model");
+			}
+			
+			int version = in.getInt();
+			
+			if( version != VERSION ){
+				throw new RuntimeException("Unsupported tree model version " + version + " in " + filename);
+			}
+			
+			int type = in.getInt();
+			
+			if( type == DECISION_TREE ){
+				return new BinaryDecisionTreeClassifier(readTree(in));
+			}else if( type == BAGGED_TREES ){
+				int numTrees = in.getInt();
+				BaggingClassifier bag = new BaggingClassifier(numTrees);
+				
+				for( int i = 0; i < numTrees; i++ ){
+					bag.setClassifier(i, new BinaryDecisionTreeClassifier(readTree(in)));
+				}
+				
+				return bag;
+			}else if( type == RANDOM_FOREST ){
+				return new RandomForestClassifier(readTrees(in, in.getInt()));
+			}else if( type == GRADIENT_BOOSTING ){
+				int numTrees = in.getInt();
+				double baseScore = in.getDouble();
+				int[] features = readInts(in, in.getInt());
+				
+				return new GradientBoostingClassifier(readTrees(in, numTrees), baseScore, features);
+			}else{
+				throw new RuntimeException("Unknown model type " + type + " in " + filename);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to load model from " + filename, e);
+		}
+	}
+	
+	private static FlatDecisionTree getFlatTree(Classifier model){
+		if( model instanceof BinaryDecisionTreeClassifier ){
+			return ((BinaryDecisionTreeClassifier)model).getFlatTree();
+		}else if( model instanceof CompiledTreeClassifier ){
+			return ((CompiledTreeClassifier)model).getFlatTree();
+		}else{
+			throw new RuntimeException("Can only save bagged decision trees, not " + model.getClass().getName());
+		}
+	}
+	
+	private static void writeTree(DataOutputStream out, FlatDecisionTree tree) throws IOException {
+		int size = tree.size();
+		out.writeInt(size);
+		
+		for( int node = 0; node < size; node++ ){
+			out.writeInt(tree.isLeaf(node) ? FlatDecisionTree.LEAF : tree.getFeatureIndex(node));
+		}
+		
+		for( int node = 0; node < size; node++ ){
+			out.writeDouble(tree.getThreshold(node));
+		}
+		
+		for( int node = 0; node < size; node++ ){
+			out.writeInt(tree.getLeft(node));
+		}
+		
+		for( int node = 0; node < size; node++ ){
+			out.writeInt(tree.getRight(node));
+		}
+		
+		for( int node = 0; node < size; node++ ){
+			out.writeDouble(tree.prediction(node));
+		}
+		
+		for( int node = 0; node < size; node++ ){
+			out.writeDouble(tree.confidence(node));
+		}
+	}
+	
+	private static FlatDecisionTree[] readTrees(MappedByteBuffer in, int numTrees){
+		FlatDecisionTree[] trees = new FlatDecisionTree[numTrees];
+		
+		for( int i = 0; i < numTrees; i++ ){
+			trees[i] = readTree(in);
+		}
+		
+		return trees;
+	}
+	
+	private static FlatDecisionTree readTree(MappedByteBuffer in){
+		int size = in.getInt();
+		int[] feature = readInts(in, size);
+		double[] threshold = readDoubles(in, size);
+		int[] left = readInts(in, size);
+		int[] right = readInts(in, size);
+		double[] prediction = readDoubles(in, size);
+		double[] confidence = readDoubles(in, size);
+		
+		return new FlatDecisionTree(feature, threshold, left, right, prediction, confidence);
+	}
+	
+	private static int[] readInts(MappedByteBuffer in, int length){
+		int[] values = new int[length];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + 4*length);
+		return values;
+	}
+	
+	private static double[] readDoubles(MappedByteBuffer in, int length){
+		double[] values = new double[length];
+		in.asDoubleBuffer().get(values);
+		in.position(in.position() + 8*length);
+		return values;
+	}
+}
@@ -4,16 +4,29 @@ import java.util.Map;
 import java.util.Random;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
+import ml.data.CompactExample;
 import ml.data.DataSet;
 import ml.data.Example;
+import ml.data.FeatureIndexer;
 
 /**
  * TwoLayerNN is a two-layer neural net classifier
  * 
+ * The weights are kept in arrays: featureWeights[feature][node] for the input layer,
+ * where features are the dense indices from a FeatureIndexer, and hiddenLayerWeights[node]
+ * plus hiddenLayerBias for the hidden layer.  Training compacts the examples once, then
+ * each step does a single forward pass into preallocated buffers and backpropagates from
+ * the activations it left there, so a step doesn't allocate anything and only touches the
+ * weights of the example's non-zero features.
+ * 
+ * Training can stop early (see setEarlyStopping) once the mean squared error, on the
+ * training data or a held out part of it, stops improving, in which case the net
+ * goes back to the weights with the lowest error.
+ * 
  * @author huey
  */
 public class TwoLayerNN implements Classifier {
@@ -21,10 +34,21 @@ public class TwoLayerNN implements Classifier {
 	private int numIterations;
 	private double eta;
 	
+	private int patience = 0; // iterations without improvement before stopping (0 for no early stopping)
+	private double validationFraction = 0.0;
+	private double tolerance = 1e-4;
+	private int iterationsRun = 0;
+	
 	public static int TANH = 1;
 	
-	private Map<Integer, Map<Integer, Double>> featureWeights;
-	private Map<Integer, Double> hiddenLayerWeights;
+	private FeatureIndexer indexer;
+	private double[][] featureWeights; // [feature][hidden node]
+	private double[] hiddenLayerWeights; // [hidden node]
+	private double hiddenLayerBias; // the weight of the hidden layer's bias node (node -1 in the maps)
+	
+	// workspace for training
+	private double[] hiddenLayerValues; // activations of the hidden nodes from the last forward pass
+	private double[] hiddenLayerDeltas; // error gradient with respect to each hidden node's input
 	
 	private DataSet train;
 	private DataSet test;
@@ -61,6 +85,47 @@ public class TwoLayerNN implements Classifier {
 	public void setIterations(int iterations) {
 		this.numIterations = iterations;
 	}
+	
+	/**
+	 * setEarlyStopping stops training once the mean squared error on the training data
+	 * hasn't improved for patience iterations (0, the default, never stops early)
+	 * 
+	 * @param patience
+	 */
+	public void setEarlyStopping(int patience) {
+		setEarlyStopping(0.0, patience);
+	}
+	
+	/**
+	 * setEarlyStopping holds out validationFraction of the training data and stops
+	 * training once the mean squared error on it hasn't improved for patience iterations
+	 * 
+	 * @param validationFraction
+	 * @param patience
+	 */
+	public void setEarlyStopping(double validationFraction, int patience) {
+		this.validationFraction = validationFraction;
+		this.patience = patience;
+	}
+	
+	/**
+	 * setTolerance sets the fraction of the best error an iteration has to improve on
+	 * to count as an improvement for early stopping (default 1e-4)
+	 * 
+	 * @param tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+	
+	/**
+	 * getIterationsRun returns the number of iterations the last call to train ran
+	 * 
+	 * @return iterations run
+	 */
+	public int getIterationsRun() {
+		return iterationsRun;
+	}
 
 	//////////////////////
 	// CORE METHODS
@@ -76,39 +141,68 @@ public class TwoLayerNN implements Classifier {
 		// get data with bias
 		DataSet dataWithBias = data.getCopyWithBias();
 		initializeWeights(dataWithBias);
+		List<CompactExample> training = indexer.compact(dataWithBias.getData());
 		
-		for (int iter = 0; iter < numIterations; iter++) {
+		// hold out validation data for early stopping
+		List<CompactExample> validation = training;
+		int validationSize = (int) (training.size() * validationFraction);
+		
+		if (patience > 0 && validationSize > 0) {
+			Collections.shuffle(training);
+			validation = new ArrayList<>(training.subList(training.size() - validationSize, training.size()));
+			training = new ArrayList<>(training.subList(0, training.size() - validationSize));
+		}
+		
+		CompactExample[] examples = training.toArray(new CompactExample[0]);
+		CompactExample[] validationExamples = validation.toArray(new CompactExample[0]);
+		
+		EarlyStopping stopping = patience > 0 ? new EarlyStopping(patience, tolerance) : null;
+		double[][] bestFeatureWeights = null;
+		double[] bestHiddenLayerWeights = null;
+		double bestHiddenLayerBias = 0.0;
+		
+		for (iterationsRun = 0; iterationsRun < numIterations; ) {
 
 			// iterate through examples
-			for (Example e : dataWithBias.getData()) {
-				
-				double prediction = predict(e);
-				double label = e.getLabel();
-				double error = -(label - prediction);
-				double slope = applyActivationFunctionDerivative(TANH, predict(e, true));
-				Map<Integer, Double> hiddenLayerValues = getHiddenLayerValues(e, true);
-				Map<Integer, Double> originalHiddenLayerWeights = new HashMap<>(hiddenLayerWeights);
+			for (CompactExample e : examples) {
+				double errorSlope = backpropagate(e);
 				
 				// update each hidden layer weight
-				for (int node : hiddenLayerWeights.keySet()) {
-					double hiddenLayerValue = node == -1 ? 1.0 : applyActivationFunction(TANH, hiddenLayerValues.get(node));
-					double hiddenLayerUpdate = error * slope * hiddenLayerValue;
-					hiddenLayerWeights.put(node, hiddenLayerWeights.get(node) - eta * hiddenLayerUpdate);
-					
-					// don't backpropogate the bias node
-					if (node == -1) continue;
-					for (int feature : featureWeights.keySet()) {
-
-						Map<Integer, Double> featureWeight = featureWeights.get(feature);
-						double input = e.getFeature(feature);
-						double originalWeight = originalHiddenLayerWeights.get(node);
-						double slopewx = applyActivationFunctionDerivative(TANH, hiddenLayerValues.get(node));
-	
-						double update = error * slope * originalWeight * slopewx * input;
-						featureWeight.put(node, featureWeight.get(node) - eta * update);
+				for (int node = 0; node < numHiddenNodes; node++) {
+					hiddenLayerWeights[node] -= eta * (errorSlope * hiddenLayerValues[node]);
+				}
+				hiddenLayerBias -= eta * errorSlope;
+				
+				// update the weights of the example's features (the rest have an input of 0)
+				int[] indices = e.getIndices();
+				double[] values = e.getValues();
+				for (int i = 0; i < indices.length; i++) {
+					double[] weights = featureWeights[indices[i]];
+					double input = values[i];
+					for (int node = 0; node < numHiddenNodes; node++) {
+						weights[node] -= eta * (hiddenLayerDeltas[node] * input);
 					}
 				}
 			}
+			
+			iterationsRun++;
+			
+			if (stopping != null) {
+				if (stopping.update(meanSquareError(validationExamples))) {
+					bestFeatureWeights = copyFeatureWeights(featureWeights);
+					bestHiddenLayerWeights = hiddenLayerWeights.clone();
+					bestHiddenLayerBias = hiddenLayerBias;
+				}
+				
+				if (stopping.shouldStop()) break;
+			}
+		}
+		
+		// go back to the best weights
+		if (bestFeatureWeights != null) {
+			featureWeights = bestFeatureWeights;
+			hiddenLayerWeights = bestHiddenLayerWeights;
+			hiddenLayerBias = bestHiddenLayerBias;
 		}
 	}
 	
@@ -123,7 +217,7 @@ public class TwoLayerNN implements Classifier {
 	public double classify(Example example) {
 		return predict(example) > 0 ? 1 : -1;
 	}
-
+	
 	/**
 	 * Gets the confidence of an input example with the neural net
 	 * Assumes you have already trained your classifier
@@ -145,103 +239,60 @@ public class TwoLayerNN implements Classifier {
 	 * @param example
 	 */
 	public double predict(Example example) {
-		return predict(example, false);
+		// a buffer of its own so classifying doesn't share the training workspace
+		double[] values = new double[numHiddenNodes];
+		return applyActivationFunction(forward(indexer.compact(example), values));
 	}
 	
 	/**
-	 * Helper function that returns value of an input example with the current weights
+	 * Runs an example through the net
 	 * 
-	 * @param returnRawValue: if true, predict does not apply the activation function to the output
 	 * @param example
+	 * @param values where to put the activations of the hidden nodes
+	 * @return the raw output (before the activation function)
 	 */
-	private double predict(Example example, boolean returnRawValue) {
-		
-		// Create map to hold hidden layer values and bias
-		Map<Integer, Double> hiddenLayerValues = getHiddenLayerValues(example, false);
+	private double forward(CompactExample example, double[] values) {
+		Arrays.fill(values, 0.0);
 		
-		// Calculate raw output
-		double output = getOutputValue(hiddenLayerValues, example);
-		
-		// Either return raw value or value with activation function
-		return returnRawValue ? output : applyActivationFunction(output);
-	}
-	
-	/**
-	 * Calculates the hidden layer values for an input example
-	 * 
-	 * @param example
-	 * @return Map of (hiddenLayer -> value) pairs
-	 */
-	private Map<Integer, Double> getHiddenLayerValues(Example example, boolean getRawValues) {
-		// Create map to hold hidden layer values and bias
-		Map<Integer, Double> hiddenLayerValues = new HashMap<>();
-		hiddenLayerValues.put(-1, 1.0);
-	
 		// For each feature, calculate contribution to each hidden node
-		for (int feature : example.getFeatureSet()) {
-			double featureValue = example.getFeature(feature);
-			Map<Integer, Double> featureToHiddenLayers = featureWeights.get(feature);
-		
+		int[] indices = example.getIndices();
+		double[] featureValues = example.getValues();
+		for (int i = 0; i < indices.length; i++) {
+			double[] weights = featureWeights[indices[i]];
+			double featureValue = featureValues[i];
 			for (int node = 0; node < numHiddenNodes; node++) {
-				double currentHiddenLayerValue = hiddenLayerValues.getOrDefault(node, 0.0);
-				hiddenLayerValues.put(node, currentHiddenLayerValue + featureToHiddenLayers.get(node) * featureValue);
+				values[node] += weights[node] * featureValue;
 			}
 		}
 		
-		if (getRawValues) return hiddenLayerValues;
-		
-		// Apply activation function
-		for (int node : hiddenLayerValues.keySet()) {
-			if (node == -1) continue; // don't process bias term
-			hiddenLayerValues.put(node, applyActivationFunction(hiddenLayerValues.get(node)));
-		}
-		
-		return hiddenLayerValues;
-	}
-	
-	/**
-	 * Initializes feature weight gradient to be all 0's
-	 *
-	 * @param input DataSet
-	 */
-	private Map<Integer, Map<Integer, Double>> initializeFeatureWeightGradient(DataSet data) {
-		Map<Integer, Map<Integer, Double>> output = new HashMap<>();
-		for (int feature : data.getAllFeatureIndices()) {
-			Map<Integer, Double> temp = new HashMap<>();
-			for (int i = 0; i < numHiddenNodes; i++) {
-				temp.put(i, 0.0);
-			}
-			output.put(feature, temp);
-		}
-		return output;
-	}
-	
-	/**
-	 * Initializes hidden weight gradient to be all 0's
-	 *
-	 * @param input DataSet
-	 */
-	private Map<Integer, Double> initializeHiddenWeightGradient() {
-		Map<Integer, Double> output = new HashMap<>();
-		for (int i = -1; i < numHiddenNodes; i++) {
-			output.put(i, 0.0);
+		// Apply activation function and calculate the output
+		double output = hiddenLayerBias;
+		for (int node = 0; node < numHiddenNodes; node++) {
+			values[node] = applyActivationFunction(values[node]);
+			output += values[node] * hiddenLayerWeights[node];
 		}
 		return output;
 	}
 	
 	/**
-	 * Calculates the raw output value for an input example 
-	 * 		with respect to the input map of hidden layer values
+	 * Runs an example through the net and works out the error gradients, leaving the
+	 * hidden activations in hiddenLayerValues and the gradients with respect to the
+	 * hidden nodes' inputs in hiddenLayerDeltas (using the current hidden layer weights)
 	 * 
-	 * @param example, hiddenLayerValues 
-	 * @return output
+	 * @param example
+	 * @return the gradient of the error with respect to the raw output
 	 */
-	private double getOutputValue(Map<Integer, Double> hiddenLayerValues, Example example) {
-		double output = 0.0;
-		for (int hiddenNode : hiddenLayerValues.keySet()) {
-			output += hiddenLayerValues.get(hiddenNode) * hiddenLayerWeights.get(hiddenNode);
+	private double backpropagate(CompactExample example) {
+		double prediction = applyActivationFunction(forward(example, hiddenLayerValues));
+		double error = -(example.getLabel() - prediction);
+		double errorSlope = error * applyActivationFunctionDerivative(TANH, prediction);
+		
+		for (int node = 0; node < numHiddenNodes; node++) {
+			hiddenLayerDeltas[node] = errorSlope * hiddenLayerWeights[node]
+				* applyActivationFunctionDerivative(TANH, hiddenLayerValues[node]);
 		}
-		return output;
+		
+		return errorSlope;
 	}
 	
 	/**
@@ -251,25 +302,34 @@ public class TwoLayerNN implements Classifier {
 	 * @param data
 	 */
 	private void initializeWeights(DataSet data) {
-		// create initial maps
-		featureWeights = new HashMap<>();
-		hiddenLayerWeights = new HashMap<>();
+		indexer = new FeatureIndexer(data);
+		featureWeights = new double[indexer.size()][numHiddenNodes];
+		hiddenLayerWeights = new double[numHiddenNodes];
 		Random rand = new Random();
-
+		
 		// initialize first layer weights
 		for (int feature : data.getAllFeatureIndices()) {
-			Map<Integer, Double> initialWeights = new HashMap<Integer, Double>();
+			double[] initialWeights = featureWeights[indexer.getIndex(feature)];
 			for (int node = 0; node < numHiddenNodes; node++) {
-				initialWeights.put(node, getRandomInitialWeight(rand));
+				initialWeights[node] = getRandomInitialWeight(rand);
 			}
-			featureWeights.put(feature, initialWeights);
 		}
 		
-		// initialize hidden layer weights
-		for (int node = -1; node < numHiddenNodes; node++) {
-			// -1 weight will correspond to the bias
-			hiddenLayerWeights.put(node, getRandomInitialWeight(rand));
+		// initialize hidden layer weights, bias first
+		hiddenLayerBias = getRandomInitialWeight(rand);
+		for (int node = 0; node < numHiddenNodes; node++) {
+			hiddenLayerWeights[node] = getRandomInitialWeight(rand);
 		}
+		
+		initializeWorkspace();
+	}
+	
+	/**
+	 * Allocates the buffers used by training
+	 */
+	private void initializeWorkspace() {
+		hiddenLayerValues = new double[numHiddenNodes];
+		hiddenLayerDeltas = new double[numHiddenNodes];
 	}
 	
 	/**
@@ -298,20 +358,23 @@ public class TwoLayerNN implements Classifier {
 	 */
 	private static double applyActivationFunction(int activationFunction, double value) {
 		if (activationFunction == TANH) {
-			return Math.tanh(value);
+			// the same as Math.tanh(value) to within rounding, but Math.exp is a JIT
+			// intrinsic and Math.tanh isn't, and this is most of the time training takes
+			return 1 - 2 / (Math.exp(2 * value) + 1);
 		} else {
 			return 0.0;
 		}
 	}
 	
 	/**
-	 * Helper function that applies the derivative of the activation function
+	 * Helper function that applies the derivative of the activation function,
+	 * 		given the value of the activation function (so it doesn't have to be recomputed)
 	 * 
 	 * @return output
 	 */
-	private static double applyActivationFunctionDerivative(int activationFunction, double value) {
+	private static double applyActivationFunctionDerivative(int activationFunction, double activation) {
 		if (activationFunction == TANH) {
-			return 1 - Math.pow(Math.tanh(value),2);
+			return 1 - activation * activation;
 		} else {
 			return 0.0;
 		}
@@ -328,59 +391,55 @@ public class TwoLayerNN implements Classifier {
 		DataSet dataWithBias = data.getCopyWithBias();
 		initializeWeights(dataWithBias);
 		test = test.getCopyWithBias();
+		List<CompactExample> examples = indexer.compact(dataWithBias.getData());
 		
 		double[] sse = new double[200], tre = new double[200], tse = new double[200];
 		
+		// storage for updates
+		double[][] featureWeightUpdates = new double[featureWeights.length][numHiddenNodes];
+		double[] hiddenLayerWeightUpdates = new double[numHiddenNodes];
+		
 		for (int iter = 0; iter < numIterations; iter++) {
 			
-			// initialize storage for updates
-			Map<Integer, Map<Integer, Double>> featureWeightUpdates = initializeFeatureWeightGradient(dataWithBias);
-			Map<Integer, Double> hiddenLayerWeightUpdates = initializeHiddenWeightGradient();
-
-			Collections.shuffle(dataWithBias.getData());
+			for (double[] updates : featureWeightUpdates) {
+				Arrays.fill(updates, 0.0);
+			}
+			Arrays.fill(hiddenLayerWeightUpdates, 0.0);
+			double hiddenLayerBiasUpdate = 0.0;
+			
+			Collections.shuffle(examples);
 			// iterate through examples
-			for (Example e : dataWithBias.getData()) {
+			for (CompactExample e : examples) {
+				double errorSlope = backpropagate(e);
 				
-				double prediction = predict(e);
-				double label = e.getLabel();
-				double error = -(label - prediction);
-				double slope = applyActivationFunctionDerivative(TANH, predict(e, true));
-				Map<Integer, Double> hiddenLayerValues = getHiddenLayerValues(e, true);
+				for (int node = 0; node < numHiddenNodes; node++) {
+					hiddenLayerWeightUpdates[node] += errorSlope * hiddenLayerValues[node];
+				}
+				hiddenLayerBiasUpdate += errorSlope;
 				
-				// update each hidden layer weight
-				for (int node : hiddenLayerWeights.keySet()) {
-					double hiddenLayerValue = node == -1 ? 1.0 : applyActivationFunction(TANH, hiddenLayerValues.get(node));
-					double hiddenLayerUpdate = error * slope * hiddenLayerValue;
-					hiddenLayerWeightUpdates.put(node, hiddenLayerWeightUpdates.get(node) + hiddenLayerUpdate);
-					
-					// don't backpropogate the bias node
-					if (node == -1) continue;
-					for (int feature : featureWeights.keySet()) {
-
-						Map<Integer, Double> featureWeight = featureWeightUpdates.get(feature);
-						double input = e.getFeature(feature);
-						double current = featureWeight.get(node);
-						double originalWeight = hiddenLayerWeights.get(node);
-						double slopewx = applyActivationFunctionDerivative(TANH, hiddenLayerValues.get(node));
-	
-						double update = error * slope * originalWeight * slopewx * input;
-						featureWeight.put(node, current + update);
+				int[] indices = e.getIndices();
+				double[] values = e.getValues();
+				for (int i = 0; i < indices.length; i++) {
+					double[] updates = featureWeightUpdates[indices[i]];
+					double input = values[i];
+					for (int node = 0; node < numHiddenNodes; node++) {
+						updates[node] += hiddenLayerDeltas[node] * input;
 					}
 				}
 			}
 			
-			for (int feature : dataWithBias.getAllFeatureIndices()) {
-				Map<Integer, Double> toUpdate = featureWeights.get(feature);
-				Map<Integer, Double> updateFrom = featureWeightUpdates.get(feature);
-				for (int node : toUpdate.keySet()) {
-					toUpdate.put(node, toUpdate.get(node) - eta * updateFrom.get(node));
+			for (int feature = 0; feature < featureWeights.length; feature++) {
+				double[] toUpdate = featureWeights[feature];
+				double[] updateFrom = featureWeightUpdates[feature];
+				for (int node = 0; node < numHiddenNodes; node++) {
+					toUpdate[node] -= eta * updateFrom[node];
 				}
 			}
 			
-			for (int node : hiddenLayerWeights.keySet()) {
-				double update = hiddenLayerWeightUpdates.get(node);
-				hiddenLayerWeights.put(node, hiddenLayerWeights.get(node) - eta * update);
+			for (int node = 0; node < numHiddenNodes; node++) {
+				hiddenLayerWeights[node] -= eta * hiddenLayerWeightUpdates[node];
 			}
+			hiddenLayerBias -= eta * hiddenLayerBiasUpdate;
 			
 			sse[iter] = sumOfSquareError(dataWithBias);
 			tre[iter] = getAccuracy(dataWithBias);
@@ -408,7 +467,7 @@ public class TwoLayerNN implements Classifier {
 	/////////////////////
 	
 	/**
-	 * Calculates the sum of squares error for an input dataset 
+	 * Calculates the sum of squares error for an input dataset
 	 * 		with respect to the current weights
 	 * 
 	 * @param data
@@ -422,6 +481,35 @@ public class TwoLayerNN implements Classifier {
 		return error;
 	}
 	
+	/**
+	 * Calculates the mean squared error for compacted examples
+	 * 		with respect to the current weights
+	 * 
+	 * @param examples
+	 * @return error
+	 */
+	private double meanSquareError(CompactExample[] examples) {
+		double error = 0.0;
+		for (CompactExample e : examples) {
+			error += Math.pow(e.getLabel() - applyActivationFunction(forward(e, hiddenLayerValues)), 2);
+		}
+		return error / examples.length;
+	}
+	
+	/**
+	 * Deep copies the feature weights
+	 * 
+	 * @param weights
+	 * @return copy
+	 */
+	private static double[][] copyFeatureWeights(double[][] weights) {
+		double[][] copy = new double[weights.length][];
+		for (int feature = 0; feature < weights.length; feature++) {
+			copy[feature] = weights[feature].clone();
+		}
+		return copy;
+	}
+	
 	/**
 	 * Calculates the accuracy of a data set with the classifier
 	 * 
@@ -429,7 +517,7 @@ public class TwoLayerNN implements Classifier {
 	 * @return accuracy
 	 */
 	public double getAccuracy(DataSet data) {
-		int correct = 0, total = 0;	
+		int correct = 0, total = 0;
 		
 		for (Example e : data.getData()) {
 			if (classify(e) == e.getLabel()) correct++;
@@ -441,18 +529,37 @@ public class TwoLayerNN implements Classifier {
 	
 	/**
 	 * Utility function that allows you to manually set the feature weights
+	 * 		as (feature -> (hidden node -> weight))
 	 * 
 	 */
 	public void setFeatureWeights(Map<Integer, Map<Integer, Double>> featureWeights) {
-		this.featureWeights = featureWeights;
+		List<Integer> features = new ArrayList<>(featureWeights.keySet());
+		Collections.sort(features);
+		
+		indexer = new FeatureIndexer();
+		this.featureWeights = new double[features.size()][numHiddenNodes];
+		for (int feature : features) {
+			double[] weights = this.featureWeights[indexer.add(feature)];
+			Map<Integer, Double> featureWeight = featureWeights.get(feature);
+			for (int node = 0; node < numHiddenNodes; node++) {
+				weights[node] = featureWeight.get(node);
+			}
+		}
+		
+		initializeWorkspace();
 	}
 	
 	/**
 	 * Utility function that allows you to manually set the hidden layer weights
+	 * 		as (hidden node -> weight), with the bias at node -1
 	 * 
 	 */
 	public void setHiddenLayerWeights(Map<Integer, Double> hiddenLayerWeights) {
-		this.hiddenLayerWeights = hiddenLayerWeights;
+		this.hiddenLayerWeights = new double[numHiddenNodes];
+		for (int node = 0; node < numHiddenNodes; node++) {
+			this.hiddenLayerWeights[node] = hiddenLayerWeights.get(node);
+		}
+		hiddenLayerBias = hiddenLayerWeights.get(-1);
 	}
 	
 	/**
@@ -472,27 +579,27 @@ public class TwoLayerNN implements Classifier {
 	}
 	
 	/**
-	 * Utility function that prints out all the feature weights 
+	 * Utility function that prints out all the feature weights
 	 * 		and hidden layer weights
 	 * 
 	 */
 	public void printWeights() {
 		System.out.println("Feature Weights:");
-		for (int feature : featureWeights.keySet()) {
-			System.out.println("Feature " + feature);
-			Map<Integer,Double> featureWeighting = featureWeights.get(feature);
-			for(int hiddenNode : featureWeighting.keySet()) {
-				System.out.println("To hidden node " + hiddenNode + ": " 
-					+ featureWeighting.get(hiddenNode));
+		for (int feature = 0; feature < featureWeights.length; feature++) {
+			System.out.println("Feature " + indexer.getFeatureIndex(feature));
+			for (int hiddenNode = 0; hiddenNode < numHiddenNodes; hiddenNode++) {
+				System.out.println("To hidden node " + hiddenNode + ": "
+					+ featureWeights[feature][hiddenNode]);
 			}
 			System.out.println();
 		}
 		
 		System.out.println("Hidden Layer Weights:");
-		for (int hiddenNode : hiddenLayerWeights.keySet()) {
-			System.out.println("Node " + hiddenNode + ": " + hiddenLayerWeights.get(hiddenNode));
-		}	
+		System.out.println("Node -1: " + hiddenLayerBias);
+		for (int hiddenNode = 0; hiddenNode < numHiddenNodes; hiddenNode++) {
+			System.out.println("Node " + hiddenNode + ": " + hiddenLayerWeights[hiddenNode]);
+		}
 		System.out.println();
 	}
-
+	
 }
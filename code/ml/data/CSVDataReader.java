@@ -60,6 +60,11 @@ public class CSVDataReader implements Iterator<Example>{
 			
 			try {
 				nextLine = in.readLine();
+				
+				// close the file once it's all been read
+				if( nextLine == null ){
+					in.close();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
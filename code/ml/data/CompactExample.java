@@ -0,0 +1,64 @@
+package ml.data;
+
+/**
+ * An example stored as parallel arrays of its non-zero (dense) feature indices and
+ * their values, for fast training loops.  Get these from a FeatureIndexer.
+ * 
+ * @author huey
+ * 
+ */
+public class CompactExample {
+	private int[] indices;
+	private double[] values;
+	private double label;
+	
+	/**
+	 * @param indices the dense indices of the non-zero features
+	 * @param values the values of the features
+	 * @param label
+	 */
+	public CompactExample(int[] indices, double[] values, double label){
+		this.indices = indices;
+		this.values = values;
+		this.label = label;
+	}
+	
+	/**
+	 * @return the dense indices of the non-zero features
+	 */
+	public int[] getIndices(){
+		return indices;
+	}
+	
+	/**
+	 * @return the values of the features, in the same order as getIndices
+	 */
+	public double[] getValues(){
+		return values;
+	}
+	
+	/**
+	 * @return the number of non-zero features
+	 */
+	public int size(){
+		return indices.length;
+	}
+	
+	public double getLabel(){
+		return label;
+	}
+	
+	/**
+	 * @param weights weights indexed by dense index
+	 * @return the dot product of the weights and this example
+	 */
+	public double dot(double[] weights){
+		double sum = 0.0;
+		
+		for( int i = 0; i < indices.length; i++ ){
+			sum += weights[indices[i]] * values[i];
+		}
+		
+		return sum;
+	}
+}
@@ -48,6 +48,38 @@ public class CrossValidationSet {
 		return numSplits;
 	}
 	
+	/**
+	 * Get the range of example indices that make up the test portion of
+	 * split splitNum.  For a non-randomized cross validation these index
+	 * directly into the underlying data set.
+	 * 
+	 * @param splitNum the split number requested
+	 * @return the test range; entry 0 is the first index (inclusive) and entry 1 the last (exclusive)
+	 */
+	public int[] getTestRange(int splitNum){
+		if( randomize ){
+			throw new RuntimeException("Test ranges are only fixed for non-randomized cross validation");
+		}
+		
+		return getTestRange(splitNum, dataset.getData().size());
+	}
+	
+	/**
+	 * Helper method for calculating the test range of a split over size examples
+	 * 
+	 * @param splitNum
+	 * @param size the number of examples being split
+	 * @return the test range
+	 */
+	private int[] getTestRange(int splitNum, int size){
+		// this tends to make the last split more off-sized, but it will suffice
+		int partSize = (int)(size/numSplits);
+		int begin = partSize*splitNum;
+		int end = splitNum == numSplits-1 ? size : partSize*(splitNum+1);
+		
+		return new int[] {begin, end};
+	}
+	
 	/**
 	 * Which split number to retrieve.  Splits start
 	 * at 0.
@@ -68,10 +100,9 @@ public class CrossValidationSet {
 				data = dataset.getData();
 			}
 			
-			// this tends to make the last split more off-sized, but it will suffice
-			int partSize = (int)(data.size()/numSplits);
-			int begin = partSize*splitNum;
-			int end = splitNum == numSplits-1 ? data.size() : partSize*(splitNum+1);
+			int[] range = getTestRange(splitNum, data.size());
+			int begin = range[0];
+			int end = range[1];
 			
 			DataSet train = new DataSet(dataset.getFeatureMap());
 			DataSet test = new DataSet(dataset.getFeatureMap());
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -274,6 +275,25 @@ public class DataSet {
 		return featureMap.keySet();
 	}
 	
+	/**
+	 * Get all of the feature indices that are contained in this
+	 * data set in increasing order.
+	 * 
+	 * @return
+	 */
+	public int[] getSortedFeatureIndices(){
+		int[] indices = new int[featureMap.size()];
+		int i = 0;
+		
+		for( Integer index: featureMap.keySet() ){
+			indices[i] = index;
+			i++;
+		}
+		
+		Arrays.sort(indices);
+		return indices;
+	}
+	
 	/**
 	 * Get all the labels in this data set
 	 * 
@@ -49,6 +49,23 @@ public class Example {
 		return sparseData.containsKey(featureNum) ? sparseData.get(featureNum) : 0.0;
 	}
 	
+	/**
+	 * Get the values of the features in featureIndices as a dense array, i.e.
+	 * entry i is the value of feature featureIndices[i].
+	 * 
+	 * @param featureIndices
+	 * @return the feature values
+	 */
+	public double[] getFeatures(int[] featureIndices){
+		double[] values = new double[featureIndices.length];
+		
+		for( int i = 0; i < featureIndices.length; i++ ){
+			values[i] = getFeature(featureIndices[i]);
+		}
+		
+		return values;
+	}
+	
 	/**
 	 * Set the values of the associated features with feature index featureNum.
 	 * 
@@ -0,0 +1,180 @@
+package ml.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Maps the feature indices of a data set onto a dense range 0..size()-1 so that
+ * classifiers can keep their weights in a plain double[].  Features that weren't
+ * seen when the indexer was built map to -1 (i.e. they should be ignored, which is
+ * the same as giving them a weight of 0).
+ * 
+ * @author huey
+ * 
+ */
+public class FeatureIndexer {
+	private int[] denseIndex = new int[0]; // feature index -> dense index (or -1)
+	private int[] featureIndex = new int[0]; // dense index -> feature index
+	private int size = 0;
+	
+	/**
+	 * Create an empty indexer.  Features can then be added with add or addAndCompact.
+	 */
+	public FeatureIndexer(){
+	}
+	
+	/**
+	 * Create an indexer over all the features in data.  The dense indices are in the same
+	 * order as the feature indices.
+	 * 
+	 * @param data
+	 */
+	public FeatureIndexer(DataSet data){
+		for( int index: data.getSortedFeatureIndices() ){
+			add(index);
+		}
+	}
+	
+	/**
+	 * Add a feature if it isn't already in the indexer
+	 * 
+	 * @param index the feature index
+	 * @return the dense index for the feature
+	 */
+	public int add(int index){
+		if( index >= denseIndex.length ){
+			int oldLength = denseIndex.length;
+			denseIndex = Arrays.copyOf(denseIndex, Math.max(index+1, 2*oldLength));
+			Arrays.fill(denseIndex, oldLength, denseIndex.length, -1);
+		}
+		
+		if( denseIndex[index] == -1 ){
+			if( size == featureIndex.length ){
+				featureIndex = Arrays.copyOf(featureIndex, Math.max(16, 2*size));
+			}
+			
+			denseIndex[index] = size;
+			featureIndex[size] = index;
+			size++;
+		}
+		
+		return denseIndex[index];
+	}
+	
+	/**
+	 * @param index a feature index
+	 * @return the dense index for the feature, or -1 if it isn't in the indexer
+	 */
+	public int getIndex(int index){
+		return index >= 0 && index < denseIndex.length ? denseIndex[index] : -1;
+	}
+	
+	/**
+	 * @param dense a dense index
+	 * @return the feature index it corresponds to
+	 */
+	public int getFeatureIndex(int dense){
+		return featureIndex[dense];
+	}
+	
+	/**
+	 * Get the dense indices ordered by the feature indices they correspond to.  That's
+	 * just 0..size()-1 for an indexer built from a DataSet, but not when features were
+	 * added as they were seen (e.g. when streaming).
+	 * 
+	 * @return the dense indices in feature index order
+	 */
+	public int[] getDenseIndicesInFeatureOrder(){
+		return IntStream.range(0, size).boxed()
+				.sorted(Comparator.comparingInt(dense -> featureIndex[dense]))
+				.mapToInt(Integer::intValue).toArray();
+	}
+	
+	/**
+	 * @return the number of features
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * Get the non-zero features of the example that are in the indexer
+	 * 
+	 * @param e
+	 * @return the compact version of the example
+	 */
+	public CompactExample compact(Example e){
+		int[] indices = new int[e.getFeatureSet().size()];
+		double[] values = new double[indices.length];
+		int count = 0;
+		
+		for( int index: e.getFeatureSet() ){
+			int dense = getIndex(index);
+			double value = e.getFeature(index);
+			
+			if( dense != -1 && value != 0.0 ){
+				indices[count] = dense;
+				values[count] = value;
+				count++;
+			}
+		}
+		
+		return new CompactExample(Arrays.copyOf(indices, count), Arrays.copyOf(values, count), e.getLabel());
+	}
+	
+	/**
+	 * Add any of the example's non-zero features that aren't in the indexer, then get
+	 * its compact version
+	 * 
+	 * @param e
+	 * @return the compact version of the example
+	 */
+	public CompactExample addAndCompact(Example e){
+		for( int index: e.getFeatureSet() ){
+			if( e.getFeature(index) != 0.0 ){
+				add(index);
+			}
+		}
+		
+		return compact(e);
+	}
+	
+	/**
+	 * Compact examples as they're read, adding their features to the indexer (see
+	 * addAndCompact(Example))
+	 * 
+	 * @param examples
+	 * @return an iterator over the compact versions of examples
+	 */
+	public Iterator<CompactExample> addAndCompact(Iterator<Example> examples){
+		return new Iterator<CompactExample>(){
+			@Override
+			public boolean hasNext() {
+				return examples.hasNext();
+			}
+			
+			@Override
+			public CompactExample next() {
+				return addAndCompact(examples.next());
+			}
+		};
+	}
+	
+	/**
+	 * @param examples
+	 * @return the compact versions of examples
+	 */
+	public ArrayList<CompactExample> compact(List<Example> examples){
+		ArrayList<CompactExample> compacted = new ArrayList<CompactExample>(examples.size());
+		
+		for( Example e: examples ){
+			compacted.add(compact(e));
+		}
+		
+		return compacted;
+	}
+}
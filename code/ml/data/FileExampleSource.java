@@ -0,0 +1,69 @@
+package ml.data;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * The examples in a data file, read from the file each time they're iterated over
+ * rather than being kept in memory.  This lets classifiers train on files that are
+ * too big to load into a DataSet.
+ * 
+ * The files are the same as for the DataSet(String, int) constructor.  Text files
+ * are read the same way each time, so the words get the same feature indices on
+ * every pass.
+ * 
+ * @author huey
+ * 
+ */
+public class FileExampleSource implements Iterable<Example>{
+	private String filename;
+	private int fileType;
+	
+	/**
+	 * @param filename the location of the file
+	 * @param fileType what type of file, using the constants defined in DataSet (e.g. DataSet.CSVFILE)
+	 */
+	public FileExampleSource(String filename, int fileType){
+		if( fileType != DataSet.CSVFILE && fileType != DataSet.TEXTFILE ){
+			throw new RuntimeException("Unknown file type: " + fileType);
+		}
+		
+		this.filename = filename;
+		this.fileType = fileType;
+	}
+	
+	/**
+	 * @return a new reader over the examples in the file
+	 */
+	@Override
+	public Iterator<Example> iterator() {
+		if( fileType == DataSet.TEXTFILE ){
+			return new TextDataReader(filename);
+		}
+		
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(filename));
+			
+			// ignore any lines at the beginning that start with #
+			String line = in.readLine();
+			
+			while( line != null && line.startsWith("#") ){
+				line = in.readLine();
+			}
+			
+			if( line == null ){
+				in.close();
+				throw new RuntimeException(filename + " doesn't have a header line");
+			}
+			
+			// the label is the last column
+			int labelIndex = line.split(",").length-1;
+			
+			return new CSVDataReader(in, labelIndex);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read " + filename, e);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package ml.data;
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Approximately shuffles the items (e.g. examples) from another iterator while only
+ * holding a fixed number of them in memory.  The buffer is filled from the source and
+ * each call to next returns a random item from the buffer and replaces it with the
+ * next one from the source.
+ * 
+ * Items can only come out at most capacity positions earlier than they went in, so
+ * the bigger the buffer the closer this is to a real shuffle.  If the buffer is at
+ * least as big as the data it is a real shuffle.
+ * 
+ * @author huey
+ * 
+ */
+public class ShuffleBuffer<T> implements Iterator<T>{
+	private Iterator<T> source;
+	private Object[] buffer;
+	private int size = 0; // the number of items currently in the buffer
+	private Random rand;
+	
+	/**
+	 * @param source the items to shuffle
+	 * @param capacity the most items to hold at once
+	 * @param rand
+	 */
+	public ShuffleBuffer(Iterator<T> source, int capacity, Random rand){
+		if( capacity < 1 ){
+			throw new RuntimeException("Shuffle buffer capacity must be at least 1: " + capacity);
+		}
+		
+		this.source = source;
+		this.rand = rand;
+		buffer = new Object[capacity];
+		
+		while( size < capacity && source.hasNext() ){
+			buffer[size] = source.next();
+			size++;
+		}
+	}
+	
+	@Override
+	public boolean hasNext() {
+		return size > 0;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		T next = null;
+		
+		if( hasNext() ){
+			int i = rand.nextInt(size);
+			next = (T)buffer[i];
+			
+			if( source.hasNext() ){
+				buffer[i] = source.next();
+			}else{
+				// the source is empty, so the buffer shrinks
+				size--;
+				buffer[i] = buffer[size];
+				buffer[size] = null;
+			}
+		}
+		
+		return next;
+	}
+	
+	@Override
+	public void remove() {
+		// OPTIONAL, so we won't implement
+	}
+}
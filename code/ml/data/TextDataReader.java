@@ -79,6 +79,11 @@ public class TextDataReader implements Iterator<Example>{
 			
 			try {
 				nextLine = in.readLine();
+				
+				// close the file once it's all been read
+				if( nextLine == null ){
+					in.close();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -0,0 +1,90 @@
+package ml.utils;
+
+/**
+ * Utility for sorting the indices of an array by the values in the array
+ * without boxing.
+ * 
+ * @author huey
+ * 
+ */
+public class ArgSort {
+	/**
+	 * Get the indices of values in increasing order of value.  The sort is
+	 * stable, i.e. indices with equal values stay in increasing order.
+	 * 
+	 * @param values
+	 * @return the sorted indices
+	 */
+	public static int[] argsort(double[] values){
+		int[] order = new int[values.length];
+		
+		for( int i = 0; i < order.length; i++ ){
+			order[i] = i;
+		}
+		
+		argsort(values, order, values.length);
+		return order;
+	}
+	
+	/**
+	 * Stable sort of the first length entries of order (which index into values)
+	 * by their values.
+	 * 
+	 * @param values
+	 * @param order the indices to sort, sorted in place
+	 * @param length the number of entries of order to sort
+	 */
+	public static void argsort(double[] values, int[] order, int length){
+		if( length < 2 ){
+			return;
+		}
+		
+		// bottom up merge sort, with insertion sort on small runs
+		int run = 16;
+		
+		for( int begin = 0; begin < length; begin += run ){
+			int end = Math.min(begin + run, length);
+			
+			for( int i = begin+1; i < end; i++ ){
+				int current = order[i];
+				double value = values[current];
+				int j = i-1;
+				
+				while( j >= begin && Double.compare(values[order[j]], value) > 0 ){
+					order[j+1] = order[j];
+					j--;
+				}
+				
+				order[j+1] = current;
+			}
+		}
+		
+		int[] from = order;
+		int[] to = new int[length];
+		
+		for( int width = run; width < length; width *= 2 ){
+			for( int begin = 0; begin < length; begin += 2*width ){
+				int mid = Math.min(begin + width, length);
+				int end = Math.min(begin + 2*width, length);
+				int left = begin;
+				int right = mid;
+				
+				for( int k = begin; k < end; k++ ){
+					if( left < mid && (right >= end || Double.compare(values[from[left]], values[from[right]]) <= 0) ){
+						to[k] = from[left++];
+					}else{
+						to[k] = from[right++];
+					}
+				}
+			}
+			
+			int[] temp = from;
+			from = to;
+			to = temp;
+		}
+		
+		if( from != order ){
+			System.arraycopy(from, 0, order, 0, length);
+		}
+	}
+}